@@ -1,12 +1,32 @@
 package es.ucm.fdi.iw;
 
 import java.io.File;
+import java.net.URI;
+import java.time.Duration;
 
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.hibernate.cfg.AvailableSettings;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support.ResourceBundleMessageSource;
 import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
  * General configuration for a Spring app.
@@ -44,4 +64,122 @@ public class AppConfig {
         messageSource.setBasename("Messages");
         return messageSource;
     }
+
+	/**
+	 * Declares the TaskScheduler used to run @Scheduled tasks.
+	 *
+	 * Without it, websocket support and scheduling both try to provide
+	 * one, and neither succeeds.
+	 */
+    @Bean
+    public TaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("scheduled-");
+        return scheduler;
+    }
+
+	/**
+	 * Declares the pool that finishes logins once their passwords are checked:
+	 * issuing the token, and serializing the resulting state.
+	 *
+	 * Kept apart from the (small) bcrypt pool in PasswordHasher, so that
+	 * password checks never wait behind database work or serialization.
+	 */
+    @Bean
+    public ThreadPoolTaskExecutor loginExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(env.getProperty("es.ucm.fdi.login.threads", Integer.class, 8));
+        executor.setThreadNamePrefix("login-");
+        executor.setDaemon(true);
+        return executor;
+    }
+
+	/**
+	 * Regions of the second-level cache, as named in each entity's @Cache.
+	 * Every region must be listed here: Hibernate will refuse to start otherwise.
+	 */
+	public static final String[] CACHE_REGIONS = {
+		"instances",
+		"classes", "classes.teachers", "classes.students",
+		"students", "students.guardians",
+		"users", "users.classes", "users.students"
+	};
+
+	/**
+	 * Declares the (in-process) cache used by Hibernate to keep instances, classes,
+	 * students and users between sessions.
+	 *
+	 * Each region holds at most es.ucm.fdi.cache.(region) entries; collection
+	 * regions default to the size of their owner's region ("classes.teachers"
+	 * to that of "classes", and so on).
+	 */
+    @Bean
+    public CacheManager entityCache() {
+    	long ttl = env.getProperty("es.ucm.fdi.cache.ttl-seconds", Long.class, 3600L);
+    	ConfigurationBuilder config = ConfigurationBuilder.newConfigurationBuilder();
+    	for (String region : CACHE_REGIONS) {
+    		String owner = region.replaceFirst("[.].*", "");
+    		long size = env.getProperty("es.ucm.fdi.cache." + region, Long.class,
+    				env.getProperty("es.ucm.fdi.cache." + owner, Long.class, 10000L));
+    		config = config.addCache(region, CacheConfigurationBuilder
+    				.newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(size))
+    				.withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofSeconds(ttl)))
+    				.build());
+    	}
+    	EhcacheCachingProvider provider = (EhcacheCachingProvider)
+    			Caching.getCachingProvider(EhcacheCachingProvider.class.getName());
+    	return provider.getCacheManager(URI.create("urn:es.ucm.fdi.iw:entities"), config.build());
+    }
+
+	/**
+	 * Hands the entity cache over to Hibernate.
+	 */
+    @Bean
+    public HibernatePropertiesCustomizer entityCacheCustomizer(CacheManager entityCache) {
+    	return properties -> {
+    		properties.put(ConfigSettings.CACHE_MANAGER, entityCache);
+    		properties.put(ConfigSettings.MISSING_CACHE_STRATEGY, "fail");
+    	};
+    }
+
+	/**
+	 * Declares the DataSource used by JPA, which decides where reads and writes
+	 * go: read-only transactions to a replica, if es.ucm.fdi.replica.url is set,
+	 * and everything else to the database configured via spring.datasource
+	 * (see ReplicaRoutingDataSource).
+	 *
+	 * The replica is reached with the same credentials, through a pool of its own,
+	 * and its connections are read-only. Connections are only taken from either
+	 * pool once the first statement runs; by then, it is known whether the
+	 * transaction is read-only.
+	 */
+    @Bean
+    public DataSource dataSource(DataSourceProperties properties) {
+    	HikariDataSource primary = properties.initializeDataSourceBuilder()
+    			.type(HikariDataSource.class).build();
+    	primary.setPoolName("primary");
+    	String replicaUrl = env.getProperty("es.ucm.fdi.replica.url");
+    	HikariDataSource replica = null;
+    	if (replicaUrl != null && ! replicaUrl.isEmpty()) {
+    		replica = properties.initializeDataSourceBuilder()
+    				.type(HikariDataSource.class).url(replicaUrl).build();
+    		replica.setPoolName("replica");
+    		replica.setReadOnly(true);
+    	}
+    	ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, replica);
+    	routing.afterPropertiesSet();
+    	return new LazyConnectionDataSourceProxy(routing);
+    }
+
+	/**
+	 * Makes each transaction take (and then give back) its own connection, so
+	 * that several transactions within the same request can go to different
+	 * databases.
+	 */
+    @Bean
+    public HibernatePropertiesCustomizer connectionHandlingCustomizer() {
+    	return properties -> properties.put(AvailableSettings.CONNECTION_HANDLING,
+    			"DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION");
+    }
 }
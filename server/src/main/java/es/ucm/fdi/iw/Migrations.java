@@ -0,0 +1,219 @@
+package es.ucm.fdi.iw;
+
+import es.ucm.fdi.iw.model.Message;
+import es.ucm.fdi.iw.model.UMessage;
+import es.ucm.fdi.iw.model.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.metamodel.EntityType;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Brings data from older versions of the schema up to date.
+ *
+ * Hibernate (via ddl-auto=update) adds any missing tables and columns, but
+ * cannot fill them in; that is done here, once the application has started.
+ * Each step must be safe to run again and again.
+ */
+@Component
+public class Migrations {
+
+	private static final Logger log = LogManager.getLogger(Migrations.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@EventListener(ContextRefreshedEvent.class)
+	public void migrate() {
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		tt.execute(status -> { fillRoleMasks(); return null; });
+		tt.execute(status -> { advanceSequences(); return null; });
+		tt.execute(status -> { keepLinksOnOneSide(); return null; });
+		tt.execute(status -> { fillCopyDirections(); return null; });
+		tt.execute(status -> { normalizeDates(); return null; });
+	}
+
+	/**
+	 * Users created before roles were also stored as bitmasks
+	 */
+	private void fillRoleMasks() {
+		List<String> unmasked = entityManager.createQuery(
+				"select distinct roles from User where roleMask = 0", String.class)
+				.getResultList();
+		for (String roles : unmasked) {
+			int n = entityManager.createQuery(
+					"update User set roleMask = :mask where roleMask = 0 and roles = :roles")
+					.setParameter("mask", User.Role.maskOf(roles))
+					.setParameter("roles", roles)
+					.executeUpdate();
+			log.info("Filled in role mask for {} users with roles {}", n, roles);
+		}
+	}
+
+	private boolean hasTable(String name) {
+		return ((Number) entityManager.createNativeQuery(
+				"select count(*) from information_schema.tables where table_name = ?")
+				.setParameter(1, name.toUpperCase())
+				.getSingleResult()).intValue() > 0;
+	}
+
+	/**
+	 * Teachers of classes, and guardians of students, used to be kept twice:
+	 * once in a join table for each side. Now only EClass.teachers and
+	 * Student.guardians have join tables; and students refer to their classes
+	 * only via their own column. Links only found in the old tables are copied
+	 * over; the old tables are then left alone.
+	 */
+	private void keepLinksOnOneSide() {
+		if (hasTable("user_classes") && hasTable("eclass_teachers")) {
+			int n = entityManager.createNativeQuery(
+					"insert into eclass_teachers (eclass_id, teachers_id) "
+							+ "select o.classes_id, o.user_id from user_classes o "
+							+ "where not exists (select * from eclass_teachers t "
+							+ "where t.eclass_id = o.classes_id and t.teachers_id = o.user_id)")
+					.executeUpdate();
+			log.info("Copied {} teacher links from user_classes", n);
+		}
+		if (hasTable("user_students") && hasTable("student_guardians")) {
+			int n = entityManager.createNativeQuery(
+					"insert into student_guardians (student_id, guardians_id) "
+							+ "select o.students_id, o.user_id from user_students o "
+							+ "where not exists (select * from student_guardians g "
+							+ "where g.student_id = o.students_id and g.guardians_id = o.user_id)")
+					.executeUpdate();
+			log.info("Copied {} guardian links from user_students", n);
+		}
+		if (hasTable("eclass_students")) {
+			int n = entityManager.createNativeQuery(
+					"update student s set eclass_id = (select max(o.eclass_id) "
+							+ "from eclass_students o where o.students_id = s.id) "
+							+ "where s.eclass_id is null and exists "
+							+ "(select * from eclass_students o where o.students_id = s.id)")
+					.executeUpdate();
+			log.info("Filled in the class of {} students from eclass_students", n);
+		}
+	}
+
+	/**
+	 * Users' copies of messages used to be linked to them via join tables, one
+	 * for sent and another for received copies. Now each copy has a direction,
+	 * and a date (that of its message), so that they can be looked up by user
+	 * via an index instead. Copies in neither table were those shared by class
+	 * mailboxes, which had been received.
+	 */
+	private void fillCopyDirections() {
+		for (String[] table : new String[][] {{"user_sent", "sent_id", "SENT"},
+				{"user_received", "received_id", "RECEIVED"}}) {
+			if (hasTable(table[0])) {
+				int n = entityManager.createNativeQuery(
+						"update umessage set direction = '" + table[2] + "' "
+								+ "where direction is null and id in (select " + table[1]
+								+ " from " + table[0] + ")")
+						.executeUpdate();
+				log.info("Filled in direction of {} copies from {}", n, table[0]);
+			}
+		}
+		int n = entityManager.createQuery(
+				"update UMessage set direction = :d where direction is null")
+				.setParameter("d", UMessage.Direction.RECEIVED)
+				.executeUpdate();
+		if (n > 0) {
+			log.info("Filled in direction of {} shared copies", n);
+		}
+		n = entityManager.createQuery(
+				"update UMessage um set um.date = "
+						+ "(select m.date from Message m where m = um.message) where um.date is null")
+				.executeUpdate();
+		if (n > 0) {
+			log.info("Filled in date of {} copies", n);
+		}
+	}
+
+	/**
+	 * Message dates used to be stored as sent: in any ISO format, with or without
+	 * offsets. They are now all stored as per Message.DATE_FORMAT, so that they
+	 * sort in time order; and so are those of their copies.
+	 */
+	private void normalizeDates() {
+		@SuppressWarnings("unchecked")
+		List<String> dates = entityManager.createNativeQuery(
+				"select distinct m.date from message m where not regexp_matches(m.date, "
+						+ "'[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}\\.[0-9]{3}')")
+				.getResultList();
+		int n = 0;
+		for (String date : dates) {
+			String normalized;
+			try {
+				normalized = Message.DATE_FORMAT.format(Message.parseDate(date));
+			} catch (DateTimeParseException e) {
+				log.warn("Leaving bad message date '{}' as is", date);
+				continue;
+			}
+			for (String type : new String[] {"Message", "UMessage"}) {
+				n += entityManager.createQuery(
+						"update " + type + " set date = :normalized where date = :date")
+						.setParameter("normalized", normalized)
+						.setParameter("date", date)
+						.executeUpdate();
+			}
+		}
+		if (n > 0) {
+			log.info("Normalized {} dates of messages and copies", n);
+		}
+	}
+
+	/**
+	 * @return the value that a sequence will hand out next, without taking it.
+	 * HSQLDB lists sequences' next values as character data, not as numbers.
+	 */
+	private long nextValue(String sequenceName) {
+		return Long.parseLong(String.valueOf(entityManager.createNativeQuery(
+				"select next_value from information_schema.sequences where sequence_name = ?")
+				.setParameter(1, sequenceName.toUpperCase())
+				.getSingleResult()).trim());
+	}
+
+	/**
+	 * Ids used to come from identity columns, and now come from sequences
+	 * (see each entity's getId). Sequences added by Hibernate start at 1, and
+	 * must instead start after the ids already in use.
+	 */
+	private void advanceSequences() {
+		for (EntityType<?> e : entityManager.getMetamodel().getEntities()) {
+			SequenceGenerator g;
+			try {
+				g = e.getJavaType().getMethod("getId").getAnnotation(SequenceGenerator.class);
+			} catch (NoSuchMethodException nsme) {
+				continue;
+			}
+			Long max = entityManager.createQuery(
+					"select max(id) from " + e.getName(), Long.class)
+					.getSingleResult();
+			if (g == null || max == null) {
+				continue;
+			}
+			long next = nextValue(g.sequenceName());
+			// with pooled ids, a sequence at n hands out up to allocationSize ids before n
+			long start = max + g.allocationSize();
+			if (next < start) {
+				entityManager.createNativeQuery(
+						"alter sequence " + g.sequenceName() + " restart with " + start)
+						.executeUpdate();
+				log.info("Advanced {} to {}, past existing {} ids", g.sequenceName(), start, e.getName());
+			}
+		}
+	}
+}
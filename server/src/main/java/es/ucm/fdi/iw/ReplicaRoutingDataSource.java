@@ -0,0 +1,86 @@
+package es.ucm.fdi.iw;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends read-only transactions to a replica, and everything else to the
+ * primary database.
+ *
+ * Must be wrapped in a LazyConnectionDataSourceProxy (see AppConfig.dataSource):
+ * transactions ask for their connection before they are marked as read-only,
+ * and the choice can only be made once they are. Connections must also be
+ * released after each transaction, rather than held by the session until the
+ * end of the request, for each transaction to get its own.
+ *
+ * Callers that must see their own recent writes can ask for the primary even
+ * when reading; see ReadRouting.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+	public enum Target {
+		PRIMARY,
+		REPLICA
+	}
+
+	private static final ThreadLocal<Boolean> primaryOnly = ThreadLocal.withInitial(() -> false);
+
+	private final boolean hasReplica;
+	private final Map<Target, LongAdder> connections = new LinkedHashMap<>();
+
+	/**
+	 * @param replica to read from; or null to do everything on the primary
+	 */
+	public ReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+		hasReplica = replica != null;
+		Map<Object, Object> targets = new HashMap<>();
+		targets.put(Target.PRIMARY, primary);
+		targets.put(Target.REPLICA, hasReplica ? replica : primary);
+		setTargetDataSources(targets);
+		setDefaultTargetDataSource(primary);
+		for (Target t : Target.values()) {
+			connections.put(t, new LongAdder());
+		}
+	}
+
+	/**
+	 * Sends all connections requested by this thread to the primary, or stops doing so.
+	 */
+	public static void usePrimary(boolean primary) {
+		primaryOnly.set(primary);
+	}
+
+	public boolean hasReplica() {
+		return hasReplica;
+	}
+
+	@Override
+	protected Target determineCurrentLookupKey() {
+		return TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+				&& ! primaryOnly.get() ? Target.REPLICA : Target.PRIMARY;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		Connection c = super.getConnection();
+		connections.get(determineCurrentLookupKey()).increment();
+		return c;
+	}
+
+	/**
+	 * @return how many connections were handed out for each target
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		connections.forEach((t, n) -> result.put(t.toString().toLowerCase(), n.sum()));
+		return result;
+	}
+}
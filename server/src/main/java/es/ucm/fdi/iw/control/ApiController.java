@@ -1,6 +1,7 @@
 package es.ucm.fdi.iw.control;
 
 import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -15,18 +16,33 @@ import org.owasp.html.HtmlSanitizer;
 import org.owasp.html.HtmlStreamEventReceiver;
 import org.owasp.html.HtmlStreamRenderer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.util.HtmlUtils;
 import org.springframework.core.env.Environment;
 
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.transaction.Transactional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
@@ -55,12 +71,58 @@ public class ApiController {
 	@Autowired
 	private LocalData localData;
 
+	@Autowired
+	private TokenCache tokenCache;
+
+	@Autowired
+	private TokenReaper tokenReaper;
+
+	@Autowired
+	private PasswordHasher passwordHasher;
+
+	@Autowired
+	private ThreadPoolTaskExecutor loginExecutor;
+
+	@Autowired
+	private StateCache stateCache;
+
+	@Autowired
+	private RefIndex refIndex;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private Encodings encodings;
+
+	@Autowired
+	private InstanceImporter instanceImporter;
+
+	@Autowired
+	private InstanceExporter instanceExporter;
+
+	@Autowired
+	private DeliveryWorker deliveryWorker;
+
+	@Autowired
+	private FetchPlan fetchPlan;
+
+	@Autowired
+	private ReadRouting readRouting;
+
+	@Autowired
+	private ConflictRetrier conflictRetrier;
+
 	@ExceptionHandler(ApiException.class)
     public ResponseEntity handleException(ApiException e) {
         // log exception
         return ResponseEntity
                 .status(e instanceof ApiAuthException ?
 						HttpStatus.FORBIDDEN :
+						e instanceof ApiBusyException ?
+						HttpStatus.SERVICE_UNAVAILABLE :
+						e instanceof ApiConflictException ?
+						HttpStatus.CONFLICT :
 						HttpStatus.BAD_REQUEST)
                 .body(e.getMessage());
     }
@@ -83,18 +145,75 @@ public class ApiController {
 			super(text, null);
 			log.info(text);
 		}
+
+		public ApiAuthException(String text, Throwable cause) {
+			super(text, cause);
+		}
+	}
+
+	@ResponseStatus(value=HttpStatus.SERVICE_UNAVAILABLE, reason="Too busy")  // 503
+	public static class ApiBusyException extends ApiException {
+		public ApiBusyException(String text) {
+			super(text, null);
+		}
+
+		public ApiBusyException(String text, Throwable cause) {
+			super(text, cause);
+		}
+	}
+
+	@ResponseStatus(value=HttpStatus.CONFLICT, reason="Concurrent edit")  // 409
+	public static class ApiConflictException extends ApiException {
+		public ApiConflictException(String text, Throwable cause) {
+			super(text, cause);
+		}
 	}
 
 	private Token resolveTokenOrBail(String tokenKey) {
-		List<Token> results = entityManager.createQuery(
-				"from Token where key = :key", Token.class)
-				.setParameter("key", tokenKey)
-				.getResultList();
-		if ( ! results.isEmpty()) {
-			return results.get(0);
-		} else {
-			throw new ApiException("Invalid token", null);
+		TokenCache.Entry e = tokenCache.get(tokenKey);
+		Token t = e == null ? null : tokenCache.toToken(tokenKey, e, entityManager);
+		if (t == null) {
+			List<Token> results = entityManager.createQuery(
+					"from Token where key = :key", Token.class)
+					.setParameter("key", tokenKey)
+					.getResultList();
+			if (results.isEmpty()) {
+				throw new ApiException("Invalid token", null);
+			}
+			t = results.get(0);
+			tokenCache.put(t);
+		}
+
+		LocalDateTime now = LocalDateTime.now();
+		if (tokenReaper.isExpired(t, now)) {
+			tokenCache.invalidate(tokenKey);
+			throw new ApiException("Expired token", null);
+		} else if (tokenReaper.needsTouch(t, now)) {
+			// slide idle expiry
+			touch(t.getId(), now);
+			tokenCache.touch(tokenKey, now);
+		}
+		if (TransactionSynchronizationManager.isActualTransactionActive()
+				&& ! TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			readRouting.writing(tokenKey);
 		}
+		return t;
+	}
+
+	/**
+	 * Stores when a token was last used; in a transaction of its own (and on the
+	 * primary) if the current one is read-only.
+	 */
+	private void touch(long tokenId, LocalDateTime now) {
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			tt.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		}
+		tt.execute(status -> entityManager.createQuery(
+				"update Token set lastUsed = :now where id = :id")
+				.setParameter("now", now)
+				.setParameter("id", tokenId)
+				.executeUpdate());
 	}
 
 	/**
@@ -147,7 +266,11 @@ public class ApiController {
 			@PathVariable String token) {
 		log.info(token + "/logout");
 		Token t = resolveTokenOrBail(token);
-		entityManager.remove(t);
+		entityManager.createQuery("delete from Token where id = :id")
+				.setParameter("id", t.getId())
+				.executeUpdate();
+		tokenCache.invalidate(token);
+		stateCache.invalidate(token);
 	}
 
 	/**
@@ -177,7 +300,7 @@ public class ApiController {
 			user.setRoles("" + User.Role.ADMIN);
 			user.setTelephones("123-456-789");
 			String pass = generateRandomBase64Token(4);
-			user.setPassword(User.encodePassword(pass));
+			user.setPassword(passwordHasher.encode(pass));
 			instance.getUsers().add(user);
 			sb.append("\"" + user.getFirstName() + "\": {" +
 					"\"uid\": \"" + user.getUid() + "\"," +
@@ -192,6 +315,8 @@ public class ApiController {
 					Token t = new Token();
 					t.setUser(user);
 					t.setKey("1234");
+					t.setIssued(LocalDateTime.now());
+					t.setLastUsed(t.getIssued());
 					entityManager.persist(t);
 					log.info("Debug-property set, using 1234 as admin-login token for group 9");
 				} else {
@@ -211,54 +336,89 @@ public class ApiController {
 	public UMessage getMessageDetails(@RequestBody JsonNode data) throws JsonProcessingException {
 		log.info("/msg/" + new ObjectMapper().writeValueAsString(data));
 		long id = data.get("id").asLong();
-		UMessage um = entityManager.find(UMessage.class, id);
-		return um;
+		return readRouting.read(null, status -> entityManager.find(UMessage.class, id));
 	}
 
 	/**
 	 * Requests a token from the system. Provides a user to do so, for which only the
-	 * password and uid are looked at
+	 * password and uid are looked at.
+	 *
+	 * Completes asynchronously: passwords are checked on the PasswordHasher's pool,
+	 * and the token is then issued (and the resulting state serialized) in a
+	 * separate transaction, on the loginExecutor's threads. Users are looked up
+	 * on the replica, if there is one; and on the primary, if not found there.
 	 * @param data attempting to log in.
 	 * @throws JsonProcessingException
 	 */
     @PostMapping("/login")
-	@JsonView(Views.Public.class)
-    @Transactional
-    public GlobalState login(
-            @RequestBody JsonNode data) throws JsonProcessingException {
+    public CompletableFuture<ResponseEntity<byte[]>> login(
+            @RequestBody JsonNode data,
+            @RequestHeader(value = "Accept", required = false) String accept)
+            throws JsonProcessingException {
         log.info("/login/" + new ObjectMapper().writeValueAsString(data));
 
         requireFields(data, "uid", "password");
         String uid = data.get("uid").asText();
         String pass = data.get("password").asText();
 
-		List<User> results = entityManager.createQuery(
-				"from User where uid = :uid", User.class)
-				.setParameter("uid", uid)
-				.getResultList();
-		// only expecting one, because uid is unique
-		User u = results.isEmpty() ? null : results.get(0);
+		TransactionCallback<User> lookup = status -> {
+			List<User> results = entityManager.createQuery(
+					"from User where uid = :uid", User.class)
+					.setParameter("uid", uid)
+					.getResultList();
+			// only expecting one, because uid is unique
+			return results.isEmpty() ? null : results.get(0);
+		};
+		User u = readRouting.read(null, lookup);
+		if (u == null) {
+			// may have been added too recently to have reached the replica
+			u = readRouting.readPrimary(lookup);
+		}
 
 		if (u == null
 				// we do not allow "class" users to log in - they are more of a hack
-				|| u.hasRole(User.Role.CLASS)
-				||  ( ! u.passwordMatches(pass) &&
-					  ! env.getProperty("es.ucm.fdi.master-key").equals(pass))) {
-				throw new ApiAuthException("Invalid uid or password");
+				|| u.hasRole(User.Role.CLASS)) {
+			throw new ApiAuthException("Invalid uid or password");
 		}
 
-		Token token = new Token();
-		token.setUser(u);
-		token.setKey(generateRandomBase64Token(16));
-		entityManager.persist(token);
-		return new GlobalState(token);
+		long userId = u.getId();
+		Encodings.Encoding encoding = encodings.negotiate(accept);
+		CompletableFuture<Boolean> matches =
+				env.getProperty("es.ucm.fdi.master-key").equals(pass) ?
+					CompletableFuture.completedFuture(true) :
+					passwordHasher.matches(uid, pass, u.getPassword());
+		return matches.thenApplyAsync(ok -> {
+			if ( ! ok) {
+				throw new ApiAuthException("Invalid uid or password");
+			}
+			return new TransactionTemplate(transactionManager).execute(status -> {
+				Token token = new Token();
+				token.setUser(entityManager.find(User.class, userId));
+				token.setKey(generateRandomBase64Token(16));
+				token.setIssued(LocalDateTime.now());
+				token.setLastUsed(token.getIssued());
+				entityManager.persist(token);
+				tokenCache.put(token);
+				readRouting.writing(token.getKey());
+				try {
+					return ResponseEntity.ok()
+							.contentType(encoding.getMediaType())
+							.body(encodings.mapper(encoding).writerWithView(Views.Public.class)
+									.writeValueAsBytes(state(token, null, null)));
+				} catch (JsonProcessingException e) {
+					throw new ApiException("Could not serialize state", e);
+				}
+			});
+		}, loginExecutor);
     }
 
-
 	@PostMapping("/{token}/nuke")
 	@Transactional
-	public GlobalState nukeInstance(
+	@RetryOnConflict
+	public Object nukeInstance(
 			@PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode,
 			@RequestBody JsonNode data) throws JsonProcessingException {
 		log.info(token + "/addclass/" + new ObjectMapper().writeValueAsString(data));
 		Token t = resolveTokenOrBail(token);
@@ -266,25 +426,46 @@ public class ApiController {
 		if ( ! u.hasRole(User.Role.ADMIN)) {
 			throw new ApiException("Only admins can nuke instances", null);
 		}
+		tokenCache.invalidateInstance(u.getInstance().getId());
+		stateCache.invalidateInstance(u.getInstance().getId());
+		refIndex.invalidateInstance(u.getInstance().getId());
+		entityManager.createQuery("delete from Delivery d where d.message.instance = :i")
+				.setParameter("i", u.getInstance())
+				.executeUpdate();
+		// including copies shared by class mailboxes
+		entityManager.createQuery("delete from UMessage where user in "
+				+ "(select u from User u where u.instance = :i and u.roleMask = "
+				+ User.Role.CLASS.mask() + ")")
+				.setParameter("i", u.getInstance())
+				.executeUpdate();
 		entityManager.remove(u.getInstance());
 
-		return new GlobalState(t);
+		return reply(t, null, since, returnMode);
 	}
 
 	@PostMapping("/{token}/addclass")
 	@Transactional
-	public GlobalState addClass(
+	@RetryOnConflict
+	public Object addClass(
 			@PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode,
 			@RequestBody JsonNode data) throws JsonProcessingException {
 		log.info(token + "/addclass/" + new ObjectMapper().writeValueAsString(data));
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doAddClass(u, changes, data);
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doAddClass(User u, ChangeSet changes, JsonNode data) {
 		if ( ! u.hasRole(User.Role.ADMIN)) {
 			throw new ApiException("Only admins can add classes", null);
 		}
 
 		requireFields(data, "cid");
-		EClass ec = resolve(u.getInstance().getClasses(), data.get("cid").asText());
+		EClass ec = resolve(u.getInstance(), EClass.class, data.get("cid").asText());
 		if (ec != null) {
 			throw new ApiException("Duplicate class ref " + data.get("cid"), null);
 		}
@@ -293,32 +474,248 @@ public class ApiController {
 		ec.setCid(data.get("cid").asText());
 		ec.setInstance(u.getInstance());
 		entityManager.persist(ec);
+		refIndex.added(u.getInstance(), EClass.class, ec.getCid(), ec.getId());
 		User mailbox = new User();
 		mailbox.setRoles("" + User.Role.CLASS);
 		mailbox.setEnabled((byte)1);
 		mailbox.setInstance(u.getInstance());
 		mailbox.setUid(ec.getCid());
 		mailbox.setPassword("!"); // must be not-null; but /login does not allow classes to log in
+		changes.touch(ec, mailbox);
 		entityManager.persist(mailbox);
-        return new GlobalState(t);
+		refIndex.added(u.getInstance(), User.class, mailbox.getUid(), mailbox.getId());
+	}
+
+	/**
+	 * @return the teachers of a student's class; or none, if the student has no class
+	 */
+	private static Collection<User> teachersOf(Student s) {
+		return s.getEClass() == null ? Collections.emptyList() : s.getEClass().getTeachers();
+	}
+
+	/**
+	 * Starts tracking changes made by a user; states cached for whoever can
+	 * see those changes are evicted once they commit.
+	 */
+	private ChangeSet changes(User u) {
+		ChangeSet changes = new ChangeSet(entityManager, u.getInstance());
+		stateCache.watch(changes);
+		return changes;
+	}
+
+	/**
+	 * Finds something by its ref, via the RefIndex.
+	 * @return the thing, or null if there is nothing of that type with that ref
+	 */
+	private <T extends Referenceable> T resolve(Instance i, Class<T> type, String ref) {
+		if (ref == null) return null;
+		Long id = refIndex.get(i, type, ref);
+		return id == null ? null : entityManager.find(type, id);
+	}
+
+	/**
+	 * Builds the state to return to a caller: only what changed since the version
+	 * that the caller already has, if possible; or everything, otherwise.
+	 * Callers that are too far behind (beyond the instance's horizon), or whose
+	 * own visibility has changed since, get everything.
+	 *
+	 * @param changes made while handling this request, or null if none
+	 * @param since version already known to the caller, or null if none
+	 */
+	private GlobalState state(Token t, ChangeSet changes, Long since) {
+		return state(t, changes, since, null);
+	}
+
+	/**
+	 * Builds what to return to a caller after a change, as chosen via its "return"
+	 * parameter:
+	 * <ul>
+	 *     <li>full: everything visible, regardless of since</li>
+	 *     <li>delta: only what changed since the given version; or, if none given,
+	 *     only what was changed by this request. As with state(), may still
+	 *     return everything if the caller's own visibility has changed</li>
+	 *     <li>none: only the version, and the refs of whatever was created,
+	 *     changed or removed (see ChangeSet.summary())</li>
+	 * </ul>
+	 * If no mode is given, returns state(t, changes, since).
+	 */
+	private Object reply(Token t, ChangeSet changes, Long since, String mode) {
+		if (mode == null) {
+			return state(t, changes, since);
+		}
+		switch (mode) {
+			case "full":
+				return state(t, changes, null);
+			case "delta":
+				if (since == null && changes != null) {
+					since = changes.isEmpty() ?
+							changes.getLatestVersion() : changes.getVersion() - 1;
+				}
+				return state(t, changes, since);
+			case "none":
+				if (changes == null) {
+					changes = new ChangeSet(entityManager, t.getUser().getInstance());
+				}
+				return changes.summary(t.getUser().getUid());
+			default:
+				throw new ApiException("Expected return to be full, delta or none", null);
+		}
+	}
+
+	/**
+	 * As above, but including only some messages.
+	 * @param messages to include; or null to include all the user's messages
+	 */
+	private GlobalState state(Token t, ChangeSet changes, Long since, List<UMessage> messages) {
+		User u = t.getUser();
+		Instance i = u.getInstance();
+		if (messages == null && u.hasRole(User.Role.GUARDIAN)) {
+			List<UMessage> shared = sharedMessages(u);
+			if ( ! shared.isEmpty()) {
+				messages = new ArrayList<>(u.getSent());
+				messages.addAll(u.getReceived());
+				messages.addAll(shared);
+			}
+		}
+		// everything is walked, even if only changes are written
+		fetchPlan.load(u, messages);
+		long version = changes == null ? i.getVersion() : changes.getLatestVersion();
+		if (since == null || since < i.getHorizon() || since > version
+				|| u.getChanged() > since) {
+			return new GlobalState(t, version, -1, null, messages);
+		}
+		List<Tombstone> removed = entityManager.createQuery(
+				"from Tombstone where instance = :i and version > :since "
+						+ "and (owner is null or owner = :uid)", Tombstone.class)
+				.setParameter("i", i)
+				.setParameter("since", since)
+				.setParameter("uid", u.getUid())
+				.getResultList();
+		return new GlobalState(t, version, since, removed, messages);
+	}
+
+	/**
+	 * JPQL condition on a UMessage "um", for copies owned by the mailboxes of the
+	 * classes of a guardian's (":u") students; that is, shared with that guardian.
+	 */
+	private static final String SHARED_WITH_USER =
+			"um.user.roleMask = " + User.Role.CLASS.mask() + " and um.user.uid in "
+					+ "(select s.EClass.cid from Student s join s.guardians g where g = :u)";
+
+	/**
+	 * JPQL condition on a UMessage "um", for the copies that a user (":u") reads:
+	 * their own, and those shared with them for which they have no copy of their
+	 * own (which then overrides the shared copy's labels, or hides it). Except
+	 * for hidden ones.
+	 */
+	private static final String VISIBLE_TO_USER =
+			"um.hidden = false and (um.user = :u or (" + SHARED_WITH_USER + " and not exists "
+					+ "(select o.id from UMessage o where o.user = :u and o.message = um.message)))";
+
+	/**
+	 * @return ids of the guardians of the students of a class
+	 */
+	private List<Long> guardianIdsOf(String cid) {
+		return entityManager.createQuery(
+				"select distinct g.id from Student s join s.guardians g where s.EClass.cid = :cid",
+				Long.class)
+				.setParameter("cid", cid)
+				.getResultList();
 	}
 
-	private static <T extends Referenceable> T resolve(Collection<T> ts, String ref) {
-    	if (ref == null) return null;
-    	for (T t : ts) {
-    		if (t.getRef().equals(ref)) return t;
+	/**
+	 * @return copies of messages shared with a guardian (see VISIBLE_TO_USER) that
+	 * they have no copy of; oldest first
+	 */
+	private List<UMessage> sharedMessages(User u) {
+		return entityManager.createQuery(
+				"select um from UMessage um join fetch um.message where " + SHARED_WITH_USER
+						+ " and not exists (select o.id from UMessage o "
+						+ "where o.user = :u and o.message = um.message) "
+						+ "order by um.date, um.id", UMessage.class)
+				.setParameter("u", u)
+				.getResultList();
+	}
+
+	/**
+	 * @return the shared copy of a message, if shared with a guardian; or null
+	 */
+	private UMessage sharedWith(User u, Message m) {
+		if ( ! u.hasRole(User.Role.GUARDIAN)) {
+			return null;
 		}
-    	return null;
+		List<UMessage> shared = entityManager.createQuery(
+				"select um from UMessage um where um.message = :m and " + SHARED_WITH_USER,
+				UMessage.class)
+				.setParameter("m", m)
+				.setParameter("u", u)
+				.setMaxResults(1)
+				.getResultList();
+		return shared.isEmpty() ? null : shared.get(0);
+	}
+
+	/**
+	 * @return a guardian's own copy of a message shared with them, to label or
+	 * hide without affecting anybody else; created from the shared one if needed
+	 */
+	private UMessage overlay(User u, ChangeSet changes, UMessage shared) {
+		for (UMessage um : u.getReceived()) {
+			if (um.getMessage().getId() == shared.getMessage().getId()) {
+				changes.touch(um);
+				return um;
+			}
+		}
+		UMessage own = new UMessage();
+		own.setMessage(shared.getMessage());
+		own.setLabels(shared.getLabels());
+		own.setDirection(UMessage.Direction.RECEIVED);
+		own.setUser(u);
+		changes.touch(own);
+		u.addCopy(own);
+		entityManager.persist(own);
+		return own;
+	}
+
+	/**
+	 * @return a user's latest messages (sent or received), oldest first; or null
+	 * if no limit is given
+	 */
+	private List<UMessage> latestMessages(User u, Integer limit) {
+		if (limit == null) {
+			return null;
+		} else if (limit < 0) {
+			throw new ApiException("Message limit cannot be negative", null);
+		} else if (limit == 0) {
+			return Collections.emptyList();
+		}
+		List<UMessage> latest = new ArrayList<>(entityManager.createQuery(
+				"select um from UMessage um join fetch um.message where " + VISIBLE_TO_USER
+						+ " order by um.date desc, um.id desc", UMessage.class)
+				.setParameter("u", u)
+				.setMaxResults(limit)
+				.getResultList());
+		Collections.reverse(latest);
+		return latest;
 	}
 
 	@PostMapping("/{token}/addstudent")
     @Transactional
-    public GlobalState addStudent(
+	@RetryOnConflict
+    public Object addStudent(
             @PathVariable String token,
+            @RequestParam(required = false) Long since,
+            @RequestParam(value = "return", required = false) String returnMode,
             @RequestBody JsonNode data) throws JsonProcessingException {
         log.info(token + "/addstudent/" + new ObjectMapper().writeValueAsString(data));
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doAddStudent(u, changes, data);
+		entityManager.flush(); // so returned state includes new student
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doAddStudent(User u, ChangeSet changes, JsonNode data) {
 		if ( ! u.hasRole(User.Role.ADMIN)) {
 			throw new ApiException("Only admins can add students", null);
 		}
@@ -329,20 +726,24 @@ public class ApiController {
 		Student result = new Student();
 
 		// the student must specify a valid class
-		EClass ec = resolve(u.getInstance().getClasses(), data.get("cid").asText());
+		EClass ec = resolve(u.getInstance(), EClass.class, data.get("cid").asText());
 		if (ec == null) {
 			throw new ApiException("Invalid class ref " + data.get("cid"), null);
 		} else {
 			result.setEClass(ec);
 			ec.getStudents().add(result);
+			changes.touch(ec);
 		}
 		// the student may specify existing guardians
 		if (data.has("guardians")) {
 			for (JsonNode n : data.get("guardians")) {
-				User g = resolve(u.getInstance().getUsers(), n.asText());
+				User g = resolve(u.getInstance(), User.class, n.asText());
 				if (g == null) {
 					throw new ApiException("Guardian with uid " + n.asText() + " not found", null);
 				}
+				result.getGuardians().add(g);
+				g.getStudents().add(result);
+				changes.touch(g);
 			}
 		}
 		// the student must specify first and last names
@@ -350,19 +751,19 @@ public class ApiController {
 		result.setLastName(data.get("last_name").asText());
 		// and a unique student id
 		String sid = data.get("sid").asText();
-		if (resolve(u.getInstance().getStudents(), sid) != null) {
+		if (resolve(u.getInstance(), Student.class, sid) != null) {
 			throw new ApiException("Duplicate student id: " + sid, null);
 		}
 		result.setSid(sid);
 
 		result.setInstance(u.getInstance());
 		u.getInstance().getStudents().add(result);
+		changes.touch(result);
 		entityManager.persist(result);
-		entityManager.flush(); // so returned state includes new student
-		return new GlobalState(t);
-    }
+		refIndex.added(u.getInstance(), Student.class, sid, result.getId());
+	}
 
-    private static boolean isValidPass(String pass) {
+    static boolean isValidPass(String pass) {
     	boolean hasUpper = Pattern.compile("[a-z]").matcher(pass).find();
     	boolean hasLower = Pattern.compile("[A-Z]").matcher(pass).find();
     	boolean hasDigits = Pattern.compile("[0-9]").matcher(pass).find();
@@ -370,6 +771,13 @@ public class ApiController {
     	return hasUpper && hasLower && hasDigits && hasLength;
 	}
 
+	/**
+	 * @return true if a telephone number looks like ddd-ddd-ddd, with d a digit
+	 */
+	static boolean isValidTel(String tel) {
+		return tel.matches("[0-9]{3}-[0-9]{3}-[0-9]{3}");
+	}
+
   	public static final Function<HtmlStreamEventReceiver, HtmlSanitizer.Policy>
       POLICY_DEFINITION = new HtmlPolicyBuilder()
           .allowStandardUrlProtocols()
@@ -390,7 +798,7 @@ public class ApiController {
           .toFactory();
 
     // see https://github.com/OWASP/java-html-sanitizer/blob/master/src/main/java/org/owasp/html/examples/SlashdotPolicyExample.java
-	private static String whitelistHtml(String input) {
+	static String whitelistHtml(String input) {
 		StringBuilder out = new StringBuilder();
 		HtmlSanitizer.sanitize(input, POLICY_DEFINITION
 				.apply(HtmlStreamRenderer.create(out, e -> {})));
@@ -399,12 +807,22 @@ public class ApiController {
 
     @PostMapping("/{token}/adduser")
     @Transactional
-    public GlobalState addUser(
+    @RetryOnConflict
+    public Object addUser(
             @PathVariable String token,
+            @RequestParam(required = false) Long since,
+            @RequestParam(value = "return", required = false) String returnMode,
             @RequestBody JsonNode data) throws JsonProcessingException {
         log.info(token + "/adduser/" + new ObjectMapper().writeValueAsString(data));
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doAddUser(u, changes, data);
+		entityManager.flush(); // so returned state includes new user
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doAddUser(User u, ChangeSet changes, JsonNode data) {
 		if ( ! u.hasRole(User.Role.ADMIN)) {
 			throw new ApiException("Only admins can add users", null);
 		}
@@ -425,7 +843,7 @@ public class ApiController {
 
 		// the uid must be present and not exist already
 		String uid = data.get("uid").asText();
-		if (resolve(u.getInstance().getUsers(), uid) != null) {
+		if (resolve(u.getInstance(), User.class, uid) != null) {
 			throw new ApiException("Duplicate user id: " + uid, null);
 		}
 		result.setUid(uid);
@@ -444,7 +862,7 @@ public class ApiController {
 		if (data.has("tels")) {
 			for (JsonNode n : data.get("tels")) {
 				String tel = n.asText();
-				if ( ! tel.matches("[0-9]{3}-[0-9]{3}-[0-9]{3}")) {
+				if ( ! isValidTel(tel)) {
 					throw new ApiException(
 							"Bad phone: expected ddd-ddd-ddd, with d a digit. Got " + tel, null);
 				} else {
@@ -460,24 +878,26 @@ public class ApiController {
 		// the user may specify existing class ids. This is only useful for teachers
 		if (data.has("classes") && role.equals(User.Role.TEACHER)) {
 			for (JsonNode n : data.get("classes")) {
-				EClass ec = resolve(u.getInstance().getClasses(), n.asText());
+				EClass ec = resolve(u.getInstance(), EClass.class, n.asText());
 				if (ec == null) {
 					throw new ApiException("Class with cid " + n.asText() + " not found", null);
 				} else {
 					result.getClasses().add(ec);
 					ec.getTeachers().add(result);
+					changes.touch(ec);
 				}
 			}
 		}
 		// the user may specify existing student ids. This is only useful for guardians
 		if (data.has("students") && role.equals(User.Role.GUARDIAN)) {
 			for (JsonNode n : data.get("students")) {
-				Student s = resolve(u.getInstance().getStudents(), n.asText());
+				Student s = resolve(u.getInstance(), Student.class, n.asText());
 				if (s == null) {
 					throw new ApiException("Student with sid " + n.asText() + " not found", null);
 				} else {
 					result.getStudents().add(s);
 					s.getGuardians().add(result);
+					changes.touch(s);
 				}
 			}
 		}
@@ -489,29 +909,57 @@ public class ApiController {
 			if ( ! isValidPass(pass)) {
 				throw new ApiException("Invalid or missing password", null);
 			}
-			result.setPassword(User.encodePassword(pass));
+			result.setPassword(passwordHasher.encode(pass));
 		}
 
 		result.setInstance(u.getInstance());
 		u.getInstance().getUsers().add(result);
+		changes.touch(result);
 		entityManager.persist(result);
-		entityManager.flush(); // so returned state includes new user
-		return new GlobalState(t);
-    }
+		refIndex.added(u.getInstance(), User.class, uid, result.getId());
+	}
 
 	@PostMapping("/{token}/set")
 	@Transactional
-	public GlobalState set(
+	@RetryOnConflict
+	public Object set(
 			@PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode,
 			@RequestBody JsonNode data) throws JsonProcessingException {
 		log.info(token + "/set/" + new ObjectMapper().writeValueAsString(data));
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doSet(u, changes, data);
+		entityManager.flush();
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doSet(User u, ChangeSet changes, JsonNode data) {
 		boolean found = false;
 
+		if (data.has("class_delivery")) {
+			// how messages to classes reach guardians; see doSend
+			if ( ! u.hasRole(User.Role.ADMIN)) {
+				throw new ApiException("Only admins can change how classes get messages", null);
+			}
+			String mode = data.get("class_delivery").asText();
+			Instance.ClassDelivery delivery;
+			try {
+				delivery = Instance.ClassDelivery.valueOf(mode.toUpperCase());
+			} catch (IllegalArgumentException iae) {
+				throw new ApiException("Expected class_delivery to be copy or shared; got " + mode, iae);
+			}
+			// a change like any other; and, since this locks the instance and reads
+			// it again, its whole row is written back with its latest version and horizon
+			changes.getVersion();
+			u.getInstance().setClassDelivery(delivery);
+		}
+
 		if (data.has("msgid")) {
 			// setting labels on a message
-			Message m = resolve(u.getInstance().getMessages(), data.get("msgid").asText());
+			Message m = resolve(u.getInstance(), Message.class, data.get("msgid").asText());
 			if (m == null) {
 				throw new ApiException("Bad message ID", null);
 			}
@@ -520,21 +968,28 @@ public class ApiController {
 				labels.add(ln.asText());
 			}
 			String labelString = Strings.join(labels, ',');
+			UMessage shared = sharedWith(u, m);
+			if (shared != null) {
+				// labels are per-guardian; the shared copy is left as is
+				overlay(u, changes, shared).setLabels(labelString);
+			}
 			for (UMessage um : u.getSent()) {
 				if (um.getMessage().equals(m)) {
 					um.setLabels(labelString);
+					changes.touch(um);
 				}
 			}
 			for (UMessage um : u.getReceived()) {
 				if (um.getMessage().equals(m)) {
 					um.setLabels(labelString);
+					changes.touch(um);
 				}
 			}
 		}
 
 		if (data.has("uid")) {
 			// changing stuff on a user
-			User v = resolve(u.getInstance().getUsers(), data.get("uid").asText());
+			User v = resolve(u.getInstance(), User.class, data.get("uid").asText());
 			if (v == null) {
 				throw new ApiException("Bad user ID", null);
 			}
@@ -547,6 +1002,7 @@ public class ApiController {
 					data.has("students"))) {
 				throw new ApiException("Only admins may change user type, classes or students", null);
 			}
+			changes.touch(v);
 
 			// normal stuff
 			check(data, "first_name", d->!d.isEmpty(),
@@ -554,12 +1010,12 @@ public class ApiController {
 			check(data, "last_name", d->!d.isEmpty(),
 					"cannot be empty", d->v.setLastName(d));
 			check(data, "password", d->isValidPass(d),
-					"invalid", d->v.setPassword(User.encodePassword(d)));
+					"invalid", d->v.setPassword(passwordHasher.encode(d)));
 			if (data.has("tels")) {
 				ArrayList<String> tels = new ArrayList<>();
 				for (JsonNode n : data.get("tels")) {
 					String tel = n.asText();
-					if ( ! tel.matches("[0-9]{3}-[0-9]{3}-[0-9]{3}")) {
+					if ( ! isValidTel(tel)) {
 						throw new ApiException(
 								"Bad phone: expected ddd-ddd-ddd, with d a digit. Got " + tel, null);
 					} else {
@@ -573,54 +1029,63 @@ public class ApiController {
 			}
 
 			// the user may specify existing class ids. This is only useful for teachers
-			if (data.has("classes") && v.equals(User.Role.TEACHER)) {
+			if (data.has("classes") && v.hasRole(User.Role.TEACHER)) {
 				List<EClass> old = new ArrayList<>(v.getClasses());
 
 				for (JsonNode n : data.get("classes")) {
-					EClass ec = resolve(u.getInstance().getClasses(), n.asText());
+					EClass ec = resolve(u.getInstance(), EClass.class, n.asText());
 					if (ec == null) {
 						throw new ApiException("Class with cid " + n.asText() + " not found", null);
-					} else if ( ! old.contains(ec)){
+					} else if ( ! old.remove(ec) && ! v.getClasses().contains(ec)) {
 						v.getClasses().add(ec);
 						ec.getTeachers().add(v);
+						changes.touch(ec);
 					}
 				}
-				// and now, remove from old
+				// and now, remove from old classes that were not kept
 				for (EClass ec : old) {
 					ec.getTeachers().remove(v);
 					v.getClasses().remove(ec);
+					changes.touch(ec);
 				}
 			}
 			// the user may specify existing student ids. This is only useful for guardians
-			if (data.has("students") && v.equals(User.Role.GUARDIAN)) {
+			if (data.has("students") && v.hasRole(User.Role.GUARDIAN)) {
 				List<Student> old = new ArrayList<>(v.getStudents());
 
 				for (JsonNode n : data.get("students")) {
-					Student s = resolve(u.getInstance().getStudents(), n.asText());
+					Student s = resolve(u.getInstance(), Student.class, n.asText());
 					if (s == null) {
 						throw new ApiException("Student with sid " + n.asText() + " not found", null);
-					} else if ( ! old.contains(s)) {
+					} else if ( ! old.remove(s) && ! v.getStudents().contains(s)) {
 						v.getStudents().add(s);
 						s.getGuardians().add(v);
+						changes.touch(s);
+						// teachers may now see this guardian
+						changes.touch(teachersOf(s));
 					}
 				}
-				// and now, remove from old
+				// and now, remove from old students that were not kept
 				for (Student s : old) {
 					s.getGuardians().remove(v);
 					v.getStudents().remove(s);
+					// teachers may no longer see this guardian
+					changes.touch(s);
+					changes.touch(teachersOf(s));
 				}
 			}
 		}
 
 		if (data.has("sid")) {
 			// a student. May be changing class, or guardians, or name and stuff
-			Student v = resolve(u.getInstance().getStudents(), data.get("sid").asText());
+			Student v = resolve(u.getInstance(), Student.class, data.get("sid").asText());
 			if (v == null) {
 				throw new ApiException("Bad student ID", null);
 			}
 			if ( ! u.hasRole(User.Role.ADMIN)) {
 				throw new ApiException("Only admins can alter students", null);
 			}
+			changes.touch(v);
 
 			check(data, "first_name", d->!d.isEmpty(),
 					"cannot be empty", d->v.setFirstName(d));
@@ -629,11 +1094,20 @@ public class ApiController {
 
 			if (data.has("cid")) {
 				// switching class
-				EClass ec = resolve(u.getInstance().getClasses(), data.get("cid").asText());
+				EClass ec = resolve(u.getInstance(), EClass.class, data.get("cid").asText());
 				if (ec == null) {
 					throw new ApiException("Invalid class ref " + data.get("cid"), null);
-				} else if (ec.getId() != v.getEClass().getId()){
-					v.getEClass().getStudents().remove(v);
+				} else if (v.getEClass() == null || ec.getId() != v.getEClass().getId()){
+					// teachers of both classes see different students now
+					if (v.getEClass() != null) {
+						changes.touch(v.getEClass());
+						changes.touch(v.getEClass().getTeachers());
+						v.getEClass().getStudents().remove(v);
+					}
+					changes.touch(ec);
+					changes.touch(ec.getTeachers());
+					// guardians see the messages shared with the new class instead
+					changes.touch(v.getGuardians());
 					v.setEClass(ec);
 					ec.getStudents().add(v);
 				}
@@ -644,95 +1118,287 @@ public class ApiController {
 				List<User> old = new ArrayList<>(v.getGuardians());
 
 				for (JsonNode n : data.get("guardians")) {
-					User g = resolve(u.getInstance().getUsers(), n.asText());
+					User g = resolve(u.getInstance(), User.class, n.asText());
 					if (g == null) {
 						throw new ApiException("Guardian with uid " + n.asText() + " not found", null);
-					} else if ( ! old.contains(g)) {
+					} else if ( ! old.remove(g) && ! v.getGuardians().contains(g)) {
 						g.getStudents().add(v);
 						v.getGuardians().add(g);
+						changes.touch(g);
 					}
 				}
-				// and now, remove from old
+				// and now, remove old guardians that were not kept
 				for (User g : old) {
 					g.getStudents().remove(v);
 					v.getGuardians().remove(g);
+					changes.touch(g);
 				}
+				// teachers may no longer see some guardians
+				changes.touch(teachersOf(v));
 			}
 		}
 
 		if (data.has("cid")) {
-			EClass v = resolve(u.getInstance().getClasses(), data.get("cid").asText());
+			EClass v = resolve(u.getInstance(), EClass.class, data.get("cid").asText());
 			if (v == null) {
 				throw new ApiException("Bad class ID", null);
 			}
 			if ( ! u.hasRole(User.Role.ADMIN)) {
 				throw new ApiException("Only admins can alter classes", null);
 			}
+			changes.touch(v);
 
 			if (data.has("teachers")) {
 				// switching guardians
 				List<User> old = new ArrayList<>(v.getTeachers());
 
 				for (JsonNode n : data.get("teachers")) {
-					User tea = resolve(u.getInstance().getUsers(), n.asText());
+					User tea = resolve(u.getInstance(), User.class, n.asText());
 					if (tea == null) {
 						throw new ApiException("Teacher with uid " + n.asText() + " not found", null);
-					} else if ( ! old.contains(tea)) {
+					} else if ( ! old.remove(tea) && ! v.getTeachers().contains(tea)) {
 						tea.getClasses().add(v);
 						v.getTeachers().add(tea);
+						changes.touch(tea);
 					}
 				}
-				// and now, remove old teachers
+				// and now, remove old teachers that were not kept
 				for (User tea : old) {
 					tea.getClasses().remove(v);
 					v.getTeachers().remove(tea);
+					changes.touch(tea);
 				}
 			}
 			if (data.has("students")) {
 				List<Student> old = new ArrayList<>(v.getStudents());
 
 				for (JsonNode n : data.get("students")) {
-					Student s = resolve(u.getInstance().getStudents(), n.asText());
+					Student s = resolve(u.getInstance(), Student.class, n.asText());
 					if (s == null) {
 						throw new ApiException("Student with sid " + n.asText() + " not found", null);
-					} else if ( ! old.contains(s)) {
+					} else if ( ! old.remove(s) && ! v.getStudents().contains(s)) {
+						changes.touch(s);
+						if (s.getEClass() != null) {
+							changes.touch(s.getEClass());
+							changes.touch(s.getEClass().getTeachers());
+							s.getEClass().getStudents().remove(s);
+						}
 						v.getStudents().add(s);
-						s.getEClass().getStudents().remove(s);
 						s.setEClass(v);
+						changes.touch(s.getGuardians());
 					}
 				}
-				// and now, remove old students
+				// and now, remove old students that were not kept; they are left without a class
 				for (Student s : old) {
+					changes.touch(s);
+					changes.touch(s.getGuardians());
+					v.getStudents().remove(s);
 					s.setEClass(null);
 				}
+				changes.touch(v.getTeachers());
 			}
 		}
-
-		entityManager.flush();
-		return new GlobalState(t);
 	}
 
+	/**
+	 * Lists everything visible to the caller; or only what changed since a version.
+	 * Full states are cached (see StateCache), since most calls find nothing new.
+	 *
+	 * Responses carry an ETag (see StateETags). If the caller already has the
+	 * current state, and says so via If-None-Match, this answers 304 Not Modified;
+	 * with a cached token and a known instance version, without a transaction.
+	 *
+	 * States are sent as JSON, unless Smile or CBOR is preferred (see Encodings).
+	 *
+	 * Reads in a read-only transaction; on the replica, unless this token has
+	 * just written something (see ReadRouting).
+	 *
+	 * @param messages if present, include only this many of the latest messages (0 for
+	 *                 none); older messages can be paged through via /messages
+	 */
 	@PostMapping("/{token}/list")
-	@Transactional
-	public GlobalState list(@PathVariable String token) throws JsonProcessingException {
+	public ResponseEntity<byte[]> list(
+			@PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(required = false) Integer messages,
+			@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+			@RequestHeader(value = "Accept", required = false) String accept) {
 		log.info(token + "/list");
+		String sinceParam = since == null ? null : since.toString();
+		String messagesParam = messages == null ? null : messages.toString();
+		Encodings.Encoding encoding = encodings.negotiate(accept);
+
+		TokenCache.Entry e = ifNoneMatch == null ? null : tokenCache.get(token);
+		LocalDateTime now = LocalDateTime.now();
+		if (e != null && ! tokenReaper.isExpired(e.getIssued(), e.getLastUsed(), now)
+				&& ! tokenReaper.needsTouch(e.getLastUsed(), now)) {
+			Long version = stateCache.getVersion(e.getInstanceId());
+			if (version != null) {
+				String tag = StateETags.tag(e.getTokenId(), version, sinceParam, messagesParam, encoding);
+				if (StateETags.matches(ifNoneMatch, tag)) {
+					return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).build();
+				}
+			}
+		}
+
+		long stamp = stateCache.stamp();
+		return readRouting.read(token, status -> {
+			Token t = resolveTokenOrBail(token);
+			Instance i = t.getUser().getInstance();
+			stateCache.noteVersion(i.getId(), i.getVersion());
+			String tag = StateETags.tag(t.getId(), i.getVersion(), sinceParam, messagesParam, encoding);
+			if (StateETags.matches(ifNoneMatch, tag)) {
+				return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).<byte[]>build();
+			}
+
+			String variant = encoding + "/messages=" + messages;
+			byte[] bytes = since == null ? stateCache.get(token, variant) : null;
+			if (bytes == null) {
+				GlobalState state = state(t, null, since, latestMessages(t.getUser(), messages));
+				try {
+					bytes = encodings.mapper(encoding).writeValueAsBytes(state);
+				} catch (JsonProcessingException ex) {
+					throw new ApiException("Could not serialize state", ex);
+				}
+				if (state.getRemoved() == null) {
+					stateCache.put(t, variant, stamp, bytes);
+				}
+			}
+			return ResponseEntity.ok()
+					.contentType(encoding.getMediaType())
+					.varyBy("Accept")
+					.eTag(tag)
+					.body(bytes);
+		});
+	}
+
+	/**
+	 * Pages through the caller's messages (sent or received), oldest first.
+	 *
+	 * @param after a cursor, as returned in "next" by a previous call; or nothing
+	 *              to start from the oldest message
+	 * @param limit how many messages to return at most
+	 * @return the messages, a cursor to pass as "after" to get the following ones
+	 * (or to check for new ones later), and whether there are more
+	 */
+	@GetMapping("/{token}/messages")
+	public Map<String, Object> messages(
+			@PathVariable String token,
+			@RequestParam(required = false) String after,
+			@RequestParam(required = false) Integer limit) {
+		log.info(token + "/messages?after=" + after + "&limit=" + limit);
+		return readRouting.read(token, status -> messagePage(token, after, limit));
+	}
+
+	private Map<String, Object> messagePage(String token, String after, Integer limit) {
 		Token t = resolveTokenOrBail(token);
-		return new GlobalState(t);
+		int maxLimit = env.getProperty("es.ucm.fdi.messages.max-page-size", Integer.class, 500);
+		if (limit == null) {
+			limit = env.getProperty("es.ucm.fdi.messages.page-size", Integer.class, 50);
+		} else if (limit < 1 || limit > maxLimit) {
+			throw new ApiException("Limit must be between 1 and " + maxLimit, null);
+		}
+
+		String query = "select um from UMessage um join fetch um.message where " + VISIBLE_TO_USER + " ";
+		String[] cursor = null;
+		if (after != null) {
+			cursor = decodeCursor(after);
+			query += "and (um.date > :date or (um.date = :date and um.id > :id)) ";
+		}
+		TypedQuery<UMessage> q = entityManager.createQuery(
+				query + "order by um.date, um.id", UMessage.class)
+				.setParameter("u", t.getUser())
+				.setMaxResults(limit + 1);
+		if (cursor != null) {
+			q.setParameter("date", cursor[0]).setParameter("id", Long.parseLong(cursor[1]));
+		}
+		List<UMessage> page = q.getResultList();
+		boolean more = page.size() > limit;
+		if (more) {
+			page = page.subList(0, limit);
+		}
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("messages", page);
+		result.put("next", page.isEmpty() ? after : encodeCursor(page.get(page.size() - 1)));
+		result.put("more", more);
+		return result;
+	}
+
+	/**
+	 * Cursors are opaque to clients; they contain the date and id of the last message seen.
+	 */
+	private static String encodeCursor(UMessage um) {
+		String cursor = um.getDate() + "|" + um.getId();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(
+				cursor.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] decodeCursor(String cursor) {
+		try {
+			String s = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			int split = s.lastIndexOf('|');
+			String[] parts = new String[] {s.substring(0, split), s.substring(split + 1)};
+			Long.parseLong(parts[1]);
+			return parts;
+		} catch (RuntimeException e) {
+			throw new ApiException("Bad cursor: " + cursor, null);
+		}
+	}
+
+	/**
+	 * Reports internal counters, such as how often cached tokens are found. Admin-only.
+	 */
+	@GetMapping("/{token}/stats")
+	@Transactional
+	public Map<String, Object> stats(@PathVariable String token) {
+		log.info(token + "/stats");
+		Token t = resolveTokenOrBail(token);
+		if ( ! t.getUser().hasRole(User.Role.ADMIN)) {
+			throw new ApiException("Only admins can view stats", null);
+		}
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("tokens", tokenCache.stats());
+		result.put("passwords", passwordHasher.stats());
+		result.put("states", stateCache.stats());
+		result.put("refs", refIndex.stats());
+		result.put("imports", instanceImporter.stats());
+		result.put("deliveries", deliveryWorker.stats());
+		result.put("cache", fetchPlan.stats());
+		result.put("reads", readRouting.stats());
+		result.put("conflicts", conflictRetrier.stats());
+		return result;
 	}
 
 	@PostMapping("/{token}/rm/{oid}")
 	@Transactional
-	public GlobalState rm(
+	@RetryOnConflict
+	public Object rm(
 	        @PathVariable String token,
-            @PathVariable String oid) throws JsonProcessingException {
+            @PathVariable String oid,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode) throws JsonProcessingException {
 		log.info(token + "/rm/" + oid);
 
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doRm(u, changes, oid);
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doRm(User u, ChangeSet changes, String oid) {
 		boolean found = false;
 
-		Message m = resolve(u.getInstance().getMessages(), oid);
-		if (m != null) {
+		Message m = resolve(u.getInstance(), Message.class, oid);
+		UMessage shared = m == null ? null : sharedWith(u, m);
+		if (shared != null) {
+			// only hidden, since it would otherwise show through again
+			UMessage own = overlay(u, changes, shared);
+			own.setHidden(true);
+			changes.removed(Tombstone.MESSAGES, m.getMid(), u.getUid());
+			found = true;
+		} else if (m != null) {
 			List<UMessage> toRemove = new ArrayList<>();
 			for (UMessage um : u.getSent()) {
 				if (um.getMessage().getId() == m.getId()) toRemove.add(um);
@@ -741,9 +1407,16 @@ public class ApiController {
 				if (um.getMessage().getId() == m.getId()) toRemove.add(um);
 			}
 			for (UMessage um : toRemove) {
+				changes.affects(um);
+				// or it would be persisted again, via cascades
+				u.getSent().remove(um);
+				u.getReceived().remove(um);
 				entityManager.remove(um);
 				found = true;
 			}
+			if (found) {
+				changes.removed(Tombstone.MESSAGES, m.getMid(), u.getUid());
+			}
 		} else if ( ! u.hasRole(User.Role.ADMIN)) {
 			throw new ApiException("Bad message ID (and that is the only thing you can remove)", null);
 		}
@@ -751,14 +1424,22 @@ public class ApiController {
 		// admin-only: remove users, students, classes
 
 		if ( ! found) {
-			EClass c = resolve(u.getInstance().getClasses(), oid);
+			EClass c = resolve(u.getInstance(), EClass.class, oid);
 			if (c != null) {
+				changes.affects(c);
 				for (User teacher : c.getTeachers()) teacher.getClasses().remove(c);
+				changes.touch(c.getTeachers());
+				changes.removed(Tombstone.CLASSES, c.getCid(), null);
+				refIndex.removed(u.getInstance(), EClass.class, c.getCid());
 				// cascades for students, removing them; removes removed students from guardians
 				for (Student st : c.getStudents()) {
+					changes.affects(st);
 					for (User g : st.getGuardians()) {
-						g.getStudents().remove(g);
+						g.getStudents().remove(st);
 					}
+					changes.touch(st.getGuardians());
+					changes.removed(Tombstone.STUDENTS, st.getSid(), null);
+					refIndex.removed(u.getInstance(), Student.class, st.getSid());
 					// so that returned globalstate is correct
 					u.getInstance().getStudents().remove(st);
 				}
@@ -766,29 +1447,41 @@ public class ApiController {
 				entityManager.remove(c);
 
 				// also remove class-user
-				User mailbox = resolve(u.getInstance().getUsers(), oid);
+				User mailbox = resolve(u.getInstance(), User.class, oid);
 				for (Message msg : u.getInstance().getMessages()) {
 					if (msg.getTo().contains(mailbox)) {
 						msg.getTo().remove(mailbox);
 					}
 				}
+				// messages not yet delivered to the class will no longer be
+				entityManager.createQuery("delete from Delivery where mailbox = :m")
+						.setParameter("m", mailbox)
+						.executeUpdate();
+				// and messages shared with the class will no longer be shared
+				entityManager.createQuery("delete from UMessage where user = :m")
+						.setParameter("m", mailbox)
+						.executeUpdate();
+				refIndex.removed(u.getInstance(), User.class, mailbox.getUid());
 				entityManager.remove(mailbox);
 				found = true;
 			}
 		}
 		if ( ! found) {
-			User o = resolve(u.getInstance().getUsers(), oid);
+			User o = resolve(u.getInstance(), User.class, oid);
 			if (o != null) {
+				changes.affects(o);
 				if (o.hasRole(User.Role.GUARDIAN)) {
 					// remove from children
 					for (Student s : o.getStudents()) {
 						s.getGuardians().remove(o);
+						changes.touch(s);
 					}
 				}
 				if (o.hasRole(User.Role.TEACHER)) {
 					// remove from class
 					for (EClass ec : o.getClasses()) {
 						ec.getTeachers().remove(o);
+						changes.touch(ec);
 					}
 				}
 				// remove from messages too
@@ -801,20 +1494,35 @@ public class ApiController {
 					}
 				}
 
+				// and forget any tokens it may have had
+				entityManager.createQuery("delete from Token where user = :u")
+						.setParameter("u", o)
+						.executeUpdate();
+				tokenCache.invalidateUser(o.getId());
+
+				changes.removed(Tombstone.USERS, o.getUid(), null);
+				refIndex.removed(u.getInstance(), User.class, o.getUid());
 				u.getInstance().getUsers().remove(o);
 				entityManager.remove(o);
 				found = true;
 			}
 		}
 		if ( ! found) {
-			Student s = resolve(u.getInstance().getStudents(), oid);
+			Student s = resolve(u.getInstance(), Student.class, oid);
 			if (s != null) {
+				changes.affects(s);
 				// removes from class
-				s.getEClass().getStudents().remove(s);
+				if (s.getEClass() != null) {
+					s.getEClass().getStudents().remove(s);
+					changes.touch(s.getEClass());
+				}
 				// removes from guardians
 				for (User g : s.getGuardians()) {
-					g.getStudents().remove(g);
+					g.getStudents().remove(s);
 				}
+				changes.touch(s.getGuardians());
+				changes.removed(Tombstone.STUDENTS, s.getSid(), null);
+				refIndex.removed(u.getInstance(), Student.class, s.getSid());
 				u.getInstance().getStudents().remove(s);
 				entityManager.remove(s);
 				found = true;
@@ -824,19 +1532,27 @@ public class ApiController {
 		if ( ! found) {
 			throw new ApiException("ID not found; nothing removed", null);
 		}
-
-		return new GlobalState(t);
 	}
 
     @PostMapping("/{token}/send")
     @Transactional
-    public GlobalState send(
+    @RetryOnConflict
+    public Object send(
             @PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode,
 			@RequestBody JsonNode data) throws JsonProcessingException {
         log.info(token + "/send/" + new ObjectMapper().writeValueAsString(data));
 
 		Token t = resolveTokenOrBail(token);
 		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		doSend(u, changes, data);
+		entityManager.flush(); // so returned state includes new message
+		return reply(t, changes, since, returnMode);
+	}
+
+	private void doSend(User u, ChangeSet changes, JsonNode data) {
 		// create an empty Message, and start to copy stuff over
 		Message m = new Message();
 
@@ -845,27 +1561,32 @@ public class ApiController {
 
 		// The Id must be unique
 		String mid = data.get("msgid").asText();
-		if (resolve(u.getInstance().getUsers(), mid) != null) {
+		if (resolve(u.getInstance(), Message.class, mid) != null) {
 			throw new ApiException("Duplicate message id: " + mid, null);
 		}
 		m.setMid(mid);
 
-		// The date, if present, must be valid and in the past -- and sent by an admin; uses format from
-		DateTimeFormatter dtf = DateTimeFormatter.ISO_DATE_TIME;
+		// The date, if present, must be valid and in the past -- and sent by an admin; stored
+		// as per Message.DATE_FORMAT, whatever format it came in
 		if (data.has("date")) {
 			String date = data.get("date").asText();
-			LocalDateTime d = LocalDateTime.from(dtf.parse(date));
-			if (d.isAfter(LocalDateTime.now()) || ! u.hasRole(User.Role.ADMIN)) {
+			LocalDateTime d;
+			try {
+				d = Message.parseDate(date);
+			} catch (DateTimeParseException e) {
+				d = null;
+			}
+			if (d == null || d.isAfter(LocalDateTime.now()) || ! u.hasRole(User.Role.ADMIN)) {
 				throw new ApiException("If date is specified, it must be a valid ISO date; and only admins use them", null);
 			}
-			m.setDate(date);
+			m.setDate(Message.DATE_FORMAT.format(d));
 		} else {
 			// not specified - we will set it ourselves to "now"
-			m.setDate(dtf.format(LocalDateTime.now()));
+			m.setDate(Message.DATE_FORMAT.format(LocalDateTime.now()));
 		}
 
 		if (data.has("parent")) {
-			Message parent = resolve(u.getInstance().getMessages(), data.get("parent").asText());
+			Message parent = resolve(u.getInstance(), Message.class, data.get("parent").asText());
 			m.setParent(parent);
 			m.getTo().add(parent.getFrom());
 		} else {
@@ -873,7 +1594,7 @@ public class ApiController {
 
 			// One or more targets must be identified -- unless is reply
 			for (JsonNode n : data.get("to")) {
-				User o = resolve(u.getInstance().getUsers(), n.asText());
+				User o = resolve(u.getInstance(), User.class, n.asText());
 				if (o == null) {
 					throw new ApiException("To-user with uid " + n.asText() + " not found", null);
 				}
@@ -884,7 +1605,7 @@ public class ApiController {
 					}
 					boolean hasKidWithTeacher = false;
 					for (Student kid : u.getStudents()) {
-						if (kid.getEClass().getTeachers().contains(o)) {
+						if (teachersOf(kid).contains(o)) {
 							hasKidWithTeacher = true;
 							break;
 						}
@@ -911,49 +1632,200 @@ public class ApiController {
 		log.warn("After sanitization: {}\n{}\n", m.getSubject(), m.getBody());
 
 		// A sender must be specified. And unless token is from admin, it must be a the actual caller
-		User from = resolve(u.getInstance().getUsers(), data.get("from").asText());
+		User from = resolve(u.getInstance(), User.class, data.get("from").asText());
 		if (from == null ||
 				(from.getId() != u.getId() && ! u.hasRole(User.Role.ADMIN))) {
 			throw new ApiException("Sender must exist, and must be caller unless caller is admin", null);
 		}
 		m.setFrom(from);
+		// before its copies, so that they are inserted along with their message id
+		u.getInstance().getMessages().add(m);
+		entityManager.persist(m);
+		refIndex.added(u.getInstance(), Message.class, mid, m.getId());
+
 		UMessage sent = new UMessage();
 		sent.setMessage(m);
 		sent.setLabels("sent, read");
+		sent.setDirection(UMessage.Direction.SENT);
 		sent.setUser(from);
-		from.getSent().add(sent);
+		changes.touch(sent);
+		from.addCopy(sent);
 		entityManager.persist(sent);
 
 		// The mail must be delivered!
 		for (User o : m.getTo()) {
-			if (o.hasRole(User.Role.CLASS)) {
-				// deliver to each class guardian, avoiding duplicates
-				Set<User> targets = new HashSet<>();
-				for (Student s : resolve(u.getInstance().getClasses(), o.getRef()).getStudents()) {
-					targets.addAll(s.getGuardians());
-				}
-				for (User g : targets) {
-					UMessage recvd = new UMessage();
-					recvd.setMessage(m);
-					recvd.setLabels("received");
-					recvd.setUser(g);
-					g.getReceived().add(recvd);
-					entityManager.persist(recvd);
-				}
+			if (o.hasRole(User.Role.CLASS)
+					&& u.getInstance().getClassDelivery() == Instance.ClassDelivery.SHARED) {
+				// a single copy, read by every class guardian; see VISIBLE_TO_USER
+				UMessage recvd = new UMessage();
+				recvd.setMessage(m);
+				recvd.setLabels("received");
+				recvd.setDirection(UMessage.Direction.RECEIVED);
+				recvd.setUser(o);
+				changes.touch(recvd);
+				changes.reaches(guardianIdsOf(o.getUid()));
+				entityManager.persist(recvd);
+			} else if (o.hasRole(User.Role.CLASS)) {
+				// delivered to each class guardian once this commits; see DeliveryWorker
+				deliveryWorker.enqueue(m, o);
 			} else {
 				// deliver to actual user
 				UMessage recvd = new UMessage();
 				recvd.setMessage(m);
 				recvd.setLabels("received");
+				recvd.setDirection(UMessage.Direction.RECEIVED);
 				recvd.setUser(o);
-				o.getReceived().add(recvd);
+				changes.touch(recvd);
+				o.addCopy(recvd);
 				entityManager.persist(recvd);
 			}
 		}
+	}
 
-		u.getInstance().getMessages().add(m);
-		entityManager.persist(m);
-		entityManager.flush(); // so returned state includes new message
-		return new GlobalState(t);
+	/**
+	 * An operation that can be part of a batch.
+	 */
+	private interface Operation {
+		void apply(User u, ChangeSet changes, JsonNode data);
+	}
+
+	private Map<String, Operation> operations() {
+		Map<String, Operation> ops = new HashMap<>();
+		ops.put("addclass", this::doAddClass);
+		ops.put("addstudent", this::doAddStudent);
+		ops.put("adduser", this::doAddUser);
+		ops.put("set", this::doSet);
+		ops.put("rm", (u, changes, data) -> {
+			requireFields(data, "oid");
+			doRm(u, changes, data.get("oid").asText());
+		});
+		ops.put("send", this::doSend);
+		return ops;
+	}
+
+	/**
+	 * Applies several operations, in order, as a single change: either all of
+	 * them succeed, or nothing is changed. Each is validated just as if sent on
+	 * its own, and can refer to things added by earlier operations.
+	 *
+	 * Operations do not flush on their own; the batch is flushed once, at the end.
+	 * Refs are looked up via the RefIndex, which already includes everything
+	 * added or removed by earlier operations, so lookups need no queries.
+	 *
+	 * @param data an array of operations, each with an "op" (addclass, addstudent,
+	 *             adduser, set, rm or send) and the "data" that would be sent to
+	 *             that endpoint; for rm, data is {"oid": ref}
+	 */
+	@PostMapping("/{token}/batch")
+	@Transactional
+	@RetryOnConflict
+	public Object batch(
+			@PathVariable String token,
+			@RequestParam(required = false) Long since,
+			@RequestParam(value = "return", required = false) String returnMode,
+			@RequestBody JsonNode data) {
+		log.info(token + "/batch/" + data.size() + " operations");
+		if ( ! data.isArray()) {
+			throw new ApiException("Expected an array of operations", null);
+		}
+		int max = env.getProperty("es.ucm.fdi.batch.max-operations", Integer.class, 5000);
+		if (data.size() > max) {
+			throw new ApiException("Too many operations in batch; at most " + max + " allowed", null);
+		}
+
+		Token t = resolveTokenOrBail(token);
+		User u = t.getUser();
+		ChangeSet changes = changes(u);
+		Map<String, Operation> ops = operations();
+		for (int i = 0; i < data.size(); i++) {
+			JsonNode n = data.get(i);
+			Operation op = ops.get(n.path("op").asText());
+			if (op == null || ! n.has("data")) {
+				throw new ApiException("Operation " + i
+						+ ": expected an op (one of " + ops.keySet() + ") and its data", null);
+			}
+			try {
+				op.apply(u, changes, n.get("data"));
+			} catch (ApiException e) {
+				throw inOperation(i, n.get("op").asText(), e);
+			}
+		}
+		entityManager.flush(); // so returned state includes everything
+		return reply(t, changes, since, returnMode);
+	}
+
+	/**
+	 * Says which operation of a batch failed, keeping the kind of failure
+	 * (and so its status code) and the original exception as cause.
+	 */
+	private static ApiException inOperation(int i, String op, ApiException e) {
+		String text = "Operation " + i + " (" + op + "): " + e.getMessage() + "; nothing changed";
+		if (e instanceof ApiAuthException) {
+			return new ApiAuthException(text, e);
+		} else if (e instanceof ApiBusyException) {
+			return new ApiBusyException(text, e);
+		} else if (e instanceof ApiConflictException) {
+			return new ApiConflictException(text, e);
+		} else {
+			return new ApiException(text, e);
+		}
+	}
+
+	/**
+	 * Imports classes, students, users and messages into the caller's instance,
+	 * from a document shaped like sample.json; see InstanceImporter. The document
+	 * is read as it arrives, and can be sent as JSON, Smile or CBOR (as per its
+	 * Content-Type). Progress can be followed via /stats.
+	 *
+	 * @return how many things of each kind were imported, and the new version
+	 */
+	@PostMapping("/{token}/import")
+	@Transactional
+	public Map<String, Object> importInstance(
+			@PathVariable String token,
+			@RequestHeader(value = "Content-Type", required = false) String contentType,
+			InputStream body) {
+		log.info(token + "/import");
+		Token t = resolveTokenOrBail(token);
+		User u = t.getUser();
+		if ( ! u.hasRole(User.Role.ADMIN)) {
+			throw new ApiException("Only admins can import", null);
+		}
+		ChangeSet changes = changes(u);
+		Encodings.Encoding encoding;
+		try {
+			encoding = Encodings.Encoding.of(
+					contentType == null ? null : MediaType.parseMediaType(contentType));
+		} catch (InvalidMediaTypeException e) {
+			encoding = Encodings.Encoding.JSON;
+		}
+		try (JsonParser p = encodings.mapper(encoding).getFactory().createParser(body)) {
+			return instanceImporter.importInto(changes, p);
+		} catch (IOException e) {
+			throw new ApiException("Could not read document: " + e.getMessage(), null);
+		}
+	}
+
+	/**
+	 * Exports everything in the caller's instance, as NDJSON that /import can
+	 * read back; see InstanceExporter. Written as it is read, after the token
+	 * has been checked (so errors after that can only cut the export short).
+	 */
+	@GetMapping("/{token}/export")
+	public ResponseEntity<StreamingResponseBody> exportInstance(@PathVariable String token) {
+		log.info(token + "/export");
+		long instanceId = new TransactionTemplate(transactionManager).execute(status -> {
+			User u = resolveTokenOrBail(token).getUser();
+			if ( ! u.hasRole(User.Role.ADMIN)) {
+				throw new ApiException("Only admins can export", null);
+			}
+			return u.getInstance().getId();
+		});
+		return ResponseEntity.ok()
+				.contentType(new MediaType("application", "x-ndjson"))
+				.header(HttpHeaders.CONTENT_DISPOSITION,
+						"attachment; filename=\"instance-" + instanceId + ".ndjson\"")
+				.body(out -> log.info("Exported instance {}: {}",
+						instanceId, instanceExporter.export(instanceId, out)));
 	}
 }
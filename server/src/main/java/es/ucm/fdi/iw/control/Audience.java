@@ -0,0 +1,79 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.*;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Users that can see something; that is, whose GlobalState would include it.
+ * Must be kept in sync with GlobalStateWriter.
+ *
+ * Admins can see everything except other users' messages; rather than listing
+ * them one by one, they are flagged.
+ */
+public class Audience {
+
+	private final Set<Long> users = new HashSet<>();
+	private boolean admins;
+
+	private void addAll(Iterable<User> us) {
+		for (User u : us) {
+			users.add(u.getId());
+		}
+	}
+
+	/**
+	 * Adds everybody that can currently see something.
+	 */
+	public void add(Versioned v) {
+		if (v instanceof UMessage) {
+			// only seen by its owner
+			users.add(((UMessage) v).getUser().getId());
+			return;
+		}
+		admins = true;
+		if (v instanceof EClass) {
+			addAll(((EClass) v).getTeachers());
+		} else if (v instanceof Student) {
+			Student s = (Student) v;
+			if (s.getEClass() != null) {
+				addAll(s.getEClass().getTeachers());
+			}
+			addAll(s.getGuardians());
+		} else if (v instanceof User) {
+			User o = (User) v;
+			users.add(o.getId());
+			// seen by other teachers of its classes, and guardians of their students
+			for (EClass c : o.getClasses()) {
+				addAll(c.getTeachers());
+				for (Student s : c.getStudents()) {
+					addAll(s.getGuardians());
+				}
+			}
+			// seen by teachers of its students
+			for (Student s : o.getStudents()) {
+				if (s.getEClass() != null) {
+					addAll(s.getEClass().getTeachers());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds users that can see something that is not theirs; such as guardians,
+	 * for messages shared with their students' classes.
+	 */
+	public void addIds(Collection<Long> userIds) {
+		users.addAll(userIds);
+	}
+
+	public boolean includes(long userId, boolean admin) {
+		return users.contains(userId) || (admins && admin);
+	}
+
+	public boolean isEmpty() {
+		return users.isEmpty() && ! admins;
+	}
+}
@@ -0,0 +1,179 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import java.util.*;
+
+/**
+ * Changes made to an instance within a single transaction.
+ *
+ * The first change increases the instance's version; everything changed or
+ * removed afterwards is marked with that same version. To do so, the instance
+ * is first locked (until the transaction ends), and its columns read again:
+ * concurrent changes to the same instance therefore get consecutive versions,
+ * and commit in version order. The version is then increased on the instance
+ * itself, rather than via a bulk update, which would evict every cached instance.
+ *
+ * It also keeps track of who could see the changes, both before and after they
+ * were made; see getAudience().
+ */
+public class ChangeSet {
+
+	private final EntityManager entityManager;
+	private final Instance instance;
+	private long version = -1;
+	private final List<Versioned> touched = new ArrayList<>();
+	private final List<Tombstone> removals = new ArrayList<>();
+	private final Audience audience = new Audience();
+
+	public ChangeSet(EntityManager entityManager, Instance instance) {
+		this.entityManager = entityManager;
+		this.instance = instance;
+	}
+
+	public Instance getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true if nothing has been changed yet
+	 */
+	public boolean isEmpty() {
+		return version < 0;
+	}
+
+	/**
+	 * @return the version that marks these changes (increasing the instance's
+	 * version if this is the first change). Since the instance's columns are
+	 * read again then, they must only be changed after calling this.
+	 */
+	public long getVersion() {
+		if (version < 0) {
+			Instance locked = entityManager.contains(instance) ?
+					instance : entityManager.find(Instance.class, instance.getId());
+			entityManager.lock(locked, LockModeType.PESSIMISTIC_WRITE);
+			// as others may have committed them since it was loaded; its lists
+			// are left alone (a refresh would drop whatever was added to them)
+			Object[] row = entityManager.createQuery(
+					"select version, horizon, classDelivery from Instance where id = :id", Object[].class)
+					.setParameter("id", locked.getId())
+					.getSingleResult();
+			locked.setHorizon((Long) row[1]);
+			locked.setClassDelivery((Instance.ClassDelivery) row[2]);
+			version = (Long) row[0] + 1;
+			locked.setVersion(version);
+		}
+		return version;
+	}
+
+	/**
+	 * @return the latest version of the instance, including these changes
+	 */
+	public long getLatestVersion() {
+		return isEmpty() ? instance.getVersion() : version;
+	}
+
+	/**
+	 * Marks things as changed.
+	 */
+	public void touch(Versioned ... vs) {
+		for (Versioned v : vs) {
+			v.setChanged(getVersion());
+			affects(v);
+		}
+	}
+
+	public void touch(Iterable<? extends Versioned> vs) {
+		for (Versioned v : vs) {
+			v.setChanged(getVersion());
+			affects(v);
+		}
+	}
+
+	/**
+	 * Notes that something is about to change or be removed, without marking it
+	 * as changed. Whoever can currently see it is added to the audience.
+	 */
+	public void affects(Versioned v) {
+		audience.add(v);
+		touched.add(v);
+	}
+
+	/**
+	 * Notes that some users can see these changes, besides those that can see
+	 * whatever was touched.
+	 */
+	public void reaches(Collection<Long> userIds) {
+		audience.addIds(userIds);
+	}
+
+	/**
+	 * @return everybody that could see these changes: either before they were
+	 * made, or now. Meant to be called just before committing.
+	 */
+	public Audience getAudience() {
+		for (Versioned v : touched) {
+			if (entityManager.contains(v)) {
+				audience.add(v);
+			}
+		}
+		return audience;
+	}
+
+	/**
+	 * Records a removal.
+	 * @param kind one of Tombstone.CLASSES, USERS, STUDENTS or MESSAGES
+	 * @param ref of removed thing
+	 * @param owner uid of only user that should hear about it; or null for everybody
+	 */
+	public void removed(String kind, String ref, String owner) {
+		Tombstone t = new Tombstone();
+		t.setInstance(instance);
+		t.setVersion(getVersion());
+		t.setKind(kind);
+		t.setRef(ref);
+		t.setOwner(owner);
+		entityManager.persist(t);
+		removals.add(t);
+	}
+
+	private static void add(Map<String, Set<String>> byKind, String kind, String ref) {
+		byKind.computeIfAbsent(kind, k -> new LinkedHashSet<>()).add(ref);
+	}
+
+	/**
+	 * @return refs of everything created, changed or removed, by kind (see
+	 * Tombstone), along with the resulting version. Removals meant for other
+	 * users are left out.
+	 * @param uid of the user that will get the summary
+	 */
+	public Map<String, Object> summary(String uid) {
+		Map<String, Set<String>> changed = new TreeMap<>();
+		for (Versioned v : touched) {
+			if ( ! entityManager.contains(v)) {
+				continue;
+			} else if (v instanceof EClass) {
+				add(changed, Tombstone.CLASSES, ((EClass) v).getCid());
+			} else if (v instanceof User) {
+				add(changed, Tombstone.USERS, ((User) v).getUid());
+			} else if (v instanceof Student) {
+				add(changed, Tombstone.STUDENTS, ((Student) v).getSid());
+			} else if (v instanceof UMessage) {
+				add(changed, Tombstone.MESSAGES, ((UMessage) v).getMessage().getMid());
+			}
+		}
+		Map<String, Set<String>> removed = new TreeMap<>();
+		for (Tombstone t : removals) {
+			if (t.getOwner() == null || t.getOwner().equals(uid)) {
+				add(removed, t.getKind(), t.getRef());
+			}
+		}
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("version", getLatestVersion());
+		result.put("changed", changed);
+		result.put("removed", removed);
+		return result;
+	}
+}
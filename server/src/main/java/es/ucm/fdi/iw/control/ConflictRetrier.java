@@ -0,0 +1,109 @@
+package es.ucm.fdi.iw.control;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.hibernate.StaleStateException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.OptimisticLockException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs @RetryOnConflict endpoints again when their transaction fails because
+ * of a concurrent edit: something they updated had a different revision
+ * (see the entities' getRevision()) by the time the update was written.
+ *
+ * Runs outside the transaction, so that each attempt gets a transaction of
+ * its own; rolling back the failed one also clears the persistence context,
+ * so that the next attempt loads what is now in the database. Attempts are
+ * spaced by es.ucm.fdi.retry.backoff-ms times the attempt number, plus up to
+ * as much again at random, so that requests that clashed once do not clash
+ * again. After es.ucm.fdi.retry.max-attempts, the caller gets a 409.
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ConflictRetrier {
+
+	private static final Logger log = LogManager.getLogger(ConflictRetrier.class);
+
+	@Autowired
+	private Environment env;
+
+	private int maxAttempts;
+	private long backoffMs;
+
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder gaveUp = new LongAdder();
+
+	@PostConstruct
+	public void init() {
+		maxAttempts = Math.max(1, env.getProperty("es.ucm.fdi.retry.max-attempts", Integer.class, 3));
+		backoffMs = env.getProperty("es.ucm.fdi.retry.backoff-ms", Long.class, 20L);
+	}
+
+	@Around("@annotation(es.ucm.fdi.iw.control.RetryOnConflict)")
+	public Object retry(ProceedingJoinPoint call) throws Throwable {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				Object result = call.proceed();
+				if (attempt > 1) {
+					retried.increment();
+				}
+				return result;
+			} catch (RuntimeException e) {
+				if ( ! isConflict(e)) {
+					throw e;
+				}
+				conflicts.increment();
+				if (attempt == maxAttempts) {
+					gaveUp.increment();
+					throw new ApiController.ApiConflictException(
+							"Conflicting concurrent edit; gave up after " + attempt + " attempts", e);
+				}
+				log.info("Conflict in " + call.getSignature().getName()
+						+ " (attempt " + attempt + " of " + maxAttempts + "): " + e.getMessage());
+				retries.increment();
+				Thread.sleep(backoffMs * attempt + ThreadLocalRandom.current().nextLong(backoffMs * attempt + 1));
+			}
+		}
+	}
+
+	/**
+	 * @return true if e was caused by a failed optimistic lock, however wrapped
+	 */
+	private static boolean isConflict(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof OptimisticLockException
+					|| t instanceof StaleStateException
+					|| t instanceof ConcurrencyFailureException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("maxAttempts", maxAttempts);
+		result.put("conflicts", conflicts.sum());
+		result.put("retries", retries.sum());
+		result.put("retriedOk", retried.sum());
+		result.put("gaveUp", gaveUp.sum());
+		return result;
+	}
+}
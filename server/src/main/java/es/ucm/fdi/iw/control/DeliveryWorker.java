@@ -0,0 +1,249 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers messages sent to class mailboxes to the guardians of each class,
+ * on its own thread pool, so that senders need not wait for it.
+ *
+ * /send only stores a Delivery (an outbox row) along with the message. Once
+ * that commits, the delivery is handed to the pool; pending deliveries are
+ * also polled for every few seconds, so that those left behind by failures
+ * or restarts are eventually retried, with exponential backoff. Each delivery
+ * runs in a single transaction, which creates the missing copies in batches
+ * and then removes the Delivery. Guardians that already have their copy are
+ * skipped, so delivering twice is harmless.
+ */
+@Component
+public class DeliveryWorker {
+
+	private static final Logger log = LogManager.getLogger(DeliveryWorker.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private StateCache stateCache;
+
+	private ThreadPoolExecutor pool;
+	private int batchSize;
+	private long retryMs, maxRetryMs;
+	// deliveries submitted to the pool, and not yet finished
+	private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder copies = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder lagMillis = new LongAdder();
+	private final LongAccumulator maxLagMillis = new LongAccumulator(Math::max, 0);
+
+	@PostConstruct
+	public void init() {
+		int threads = env.getProperty("es.ucm.fdi.delivery.threads", Integer.class, 2);
+		batchSize = env.getProperty("es.ucm.fdi.delivery.batch-size", Integer.class, 100);
+		retryMs = env.getProperty("es.ucm.fdi.delivery.retry-ms", Long.class, 1000L);
+		maxRetryMs = env.getProperty("es.ucm.fdi.delivery.max-retry-ms", Long.class, 600000L);
+
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				r -> {
+					Thread t = new Thread(r, "delivery-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		log.info("Delivering class messages on {} threads, in batches of {}", threads, batchSize);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Queues a message for delivery to the guardians of a class. Must be called
+	 * within the transaction that sends the message; delivery starts once it
+	 * commits.
+	 * @param mailbox of the class
+	 */
+	public void enqueue(Message m, User mailbox) {
+		Delivery d = new Delivery();
+		d.setMessage(m);
+		d.setMailbox(mailbox);
+		d.setCreated(LocalDateTime.now());
+		d.setDue(d.getCreated());
+		entityManager.persist(d);
+		long id = d.getId();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCommit() {
+							submit(id);
+						}
+					});
+		}
+	}
+
+	private void submit(long id) {
+		if ( ! inFlight.add(id)) {
+			return;
+		}
+		try {
+			pool.execute(() -> {
+				try {
+					deliver(id);
+				} finally {
+					inFlight.remove(id);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// shutting down; will be polled for after restarting
+			inFlight.remove(id);
+		}
+	}
+
+	/**
+	 * Submits deliveries that are due, but not under way.
+	 */
+	@Scheduled(fixedDelayString = "${es.ucm.fdi.delivery.poll-every-ms:5000}")
+	public void poll() {
+		List<Long> due = new TransactionTemplate(transactionManager).execute(status ->
+				entityManager.createQuery(
+						"select id from Delivery where due <= :now order by due", Long.class)
+						.setParameter("now", LocalDateTime.now())
+						.setMaxResults(batchSize)
+						.getResultList());
+		due.forEach(this::submit);
+	}
+
+	private void deliver(long id) {
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		try {
+			LocalDateTime created = tx.execute(status -> deliverNow(id));
+			if (created != null) {
+				long lag = Duration.between(created, LocalDateTime.now()).toMillis();
+				delivered.increment();
+				lagMillis.add(lag);
+				maxLagMillis.accumulate(lag);
+			}
+		} catch (RuntimeException e) {
+			failures.increment();
+			Integer attempts = tx.execute(status -> {
+				Delivery d = entityManager.find(Delivery.class, id);
+				if (d == null) {
+					return null;
+				}
+				d.setAttempts(d.getAttempts() + 1);
+				String error = "" + e;
+				d.setError(error.length() > 1024 ? error.substring(0, 1024) : error);
+				long wait = Math.min(maxRetryMs, retryMs << Math.min(d.getAttempts() - 1, 20));
+				d.setDue(LocalDateTime.now().plus(Duration.ofMillis(wait)));
+				return d.getAttempts();
+			});
+			log.warn("Could not deliver " + id + " (" + attempts + " attempts so far)", e);
+		}
+	}
+
+	/**
+	 * Creates any missing copies of a message for the guardians of a class.
+	 * @return when the delivery was created; or null if it was already done
+	 */
+	private LocalDateTime deliverNow(long id) {
+		Delivery d = entityManager.find(Delivery.class, id);
+		if (d == null) {
+			return null;
+		}
+		LocalDateTime created = d.getCreated();
+		long messageId = d.getMessage().getId();
+		String date = d.getMessage().getDate();
+		ChangeSet changes = new ChangeSet(entityManager, d.getMessage().getInstance());
+		stateCache.watch(changes);
+
+		Set<Long> targets = new LinkedHashSet<>(entityManager.createQuery(
+				"select distinct g.id from Student s join s.guardians g where s.EClass.cid = :cid",
+				Long.class)
+				.setParameter("cid", d.getMailbox().getUid())
+				.getResultList());
+		targets.removeAll(entityManager.createQuery(
+				"select um.user.id from UMessage um where um.message.id = :m and um.direction = :d",
+				Long.class)
+				.setParameter("m", messageId)
+				.setParameter("d", UMessage.Direction.RECEIVED)
+				.getResultList());
+
+		int unflushed = 0;
+		for (long userId : targets) {
+			User g = entityManager.find(User.class, userId);
+			UMessage recvd = new UMessage();
+			recvd.setMessage(entityManager.getReference(Message.class, messageId));
+			recvd.setLabels("received");
+			recvd.setDirection(UMessage.Direction.RECEIVED);
+			recvd.setDate(date);
+			recvd.setUser(g);
+			changes.touch(recvd);
+			g.addCopy(recvd);
+			entityManager.persist(recvd);
+			if (++unflushed == batchSize) {
+				entityManager.flush();
+				entityManager.clear();
+				unflushed = 0;
+			}
+		}
+		entityManager.createQuery("delete from Delivery where id = :id")
+				.setParameter("id", id)
+				.executeUpdate();
+		copies.add(targets.size());
+		return created;
+	}
+
+	/**
+	 * Must be called within a transaction.
+	 */
+	public Map<String, Object> stats() {
+		LocalDateTime oldest = entityManager.createQuery(
+				"select min(created) from Delivery", LocalDateTime.class)
+				.getSingleResult();
+		long n = Math.max(1, delivered.sum());
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("pending", entityManager.createQuery(
+				"select count(id) from Delivery", Long.class).getSingleResult());
+		result.put("oldestPendingMs", oldest == null ? 0 :
+				Duration.between(oldest, LocalDateTime.now()).toMillis());
+		result.put("delivered", delivered.sum());
+		result.put("copies", copies.sum());
+		result.put("failures", failures.sum());
+		result.put("active", pool.getActiveCount());
+		result.put("queued", pool.getQueue().size());
+		result.put("avgLagMs", lagMillis.sum() / n);
+		result.put("maxLagMs", maxLagMillis.get());
+		return result;
+	}
+}
@@ -0,0 +1,101 @@
+package es.ucm.fdi.iw.control;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodings that API responses can be sent in. JSON is the default; clients
+ * can ask for Smile or CBOR (which are smaller, and quicker to parse) via
+ * their Accept header.
+ *
+ * Most endpoints get this for free from Spring's message converters, which
+ * also accept request bodies in any of them (as per their Content-Type). This
+ * is for those that serialize responses themselves, such as /list and /login.
+ */
+@Component
+public class Encodings {
+
+	public enum Encoding {
+		JSON(MediaType.APPLICATION_JSON_UTF8),
+		SMILE(new MediaType("application", "x-jackson-smile")),
+		CBOR(new MediaType("application", "cbor"));
+
+		private final MediaType mediaType;
+
+		Encoding(MediaType mediaType) {
+			this.mediaType = mediaType;
+		}
+
+		public MediaType getMediaType() {
+			return mediaType;
+		}
+
+		/**
+		 * @return the encoding of a content type; JSON if none of the others
+		 */
+		public static Encoding of(MediaType type) {
+			if (type != null) {
+				for (Encoding e : values()) {
+					if (e.mediaType.isCompatibleWith(type) && ! type.isWildcardSubtype()) {
+						return e;
+					}
+				}
+			}
+			return JSON;
+		}
+	}
+
+	private final Map<Encoding, ObjectMapper> mappers = new EnumMap<>(Encoding.class);
+
+	/**
+	 * Binary mappers are configured just like the JSON one (say, regarding views).
+	 */
+	@Autowired
+	public Encodings(ObjectMapper objectMapper, ObjectProvider<Jackson2ObjectMapperBuilder> builders) {
+		mappers.put(Encoding.JSON, objectMapper);
+		mappers.put(Encoding.SMILE, builders.getObject().factory(new SmileFactory()).build());
+		mappers.put(Encoding.CBOR, builders.getObject().factory(new CBORFactory()).build());
+	}
+
+	/**
+	 * @param accept as sent by a client; may be null
+	 * @return the preferred encoding among those accepted; JSON if none (or anything) is
+	 */
+	public Encoding negotiate(String accept) {
+		if (accept == null) {
+			return Encoding.JSON;
+		}
+		List<MediaType> types;
+		try {
+			types = MediaType.parseMediaTypes(accept);
+		} catch (InvalidMediaTypeException e) {
+			return Encoding.JSON;
+		}
+		MediaType.sortBySpecificityAndQuality(types);
+		for (MediaType t : types) {
+			if (t.isWildcardSubtype()) {
+				break;
+			}
+			Encoding e = Encoding.of(t);
+			if (e != Encoding.JSON || MediaType.APPLICATION_JSON.isCompatibleWith(t)) {
+				return e;
+			}
+		}
+		return Encoding.JSON;
+	}
+
+	public ObjectMapper mapper(Encoding e) {
+		return mappers.get(e);
+	}
+}
@@ -0,0 +1,215 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.AppConfig;
+import es.ucm.fdi.iw.model.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.util.*;
+
+/**
+ * Loads everything that GlobalStateWriter will walk for a user, so that writing
+ * their state does not load classes, students, users and messages (and each of
+ * their collections) one at a time.
+ *
+ * What is walked depends on the user's role (see GlobalStateWriter.write), and
+ * so does the plan: a few join-fetch queries, one per collection, each for all
+ * the entities that the user can see. Collections are fetched in separate
+ * queries to avoid multiplying their rows together; and in an order such that
+ * eager associations (such as a student's class) are already loaded by the time
+ * they are needed. The number of queries does not depend on how much is visible
+ * (except for long lists of messages, fetched a few hundred at a time).
+ *
+ * Instances, classes, students and users, and the lists that link them, are
+ * also kept in Hibernate's second-level cache (see AppConfig.entityCache); the
+ * same queries that load an admin's state are used to warm it, instance by
+ * instance, once the application has started.
+ */
+@Component
+public class FetchPlan {
+
+	// messages are fetched by id in chunks of this size
+	private static final int CHUNK = 500;
+
+	private static final Logger log = LogManager.getLogger(FetchPlan.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Loads what a user's state will include. Must be called within the
+	 * session that will write it.
+	 *
+	 * @param messages to be included instead of the user's own; or null
+	 */
+	public void load(User u, Collection<UMessage> messages) {
+		if (u.hasRole(User.Role.ADMIN)) {
+			loadInstance(u.getInstance());
+		} else if (u.hasRole(User.Role.TEACHER)) {
+			loadClasses(u);
+		} else if (u.hasRole(User.Role.GUARDIAN)) {
+			loadStudents(u);
+		}
+		loadMessages(u, messages);
+	}
+
+	/**
+	 * Loads every instance into the second-level cache, each in its own transaction.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void warm() {
+		if ( ! env.getProperty("es.ucm.fdi.cache.warm", Boolean.class, true)) {
+			return;
+		}
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		List<Long> ids = tt.execute(status -> entityManager.createQuery(
+				"select id from Instance order by id", Long.class).getResultList());
+		long start = System.currentTimeMillis();
+		for (long id : ids) {
+			tt.execute(status -> {
+				loadInstance(entityManager.find(Instance.class, id));
+				return null;
+			});
+		}
+		log.info("Warmed cache with {} instances in {} ms; {} entries stored",
+				ids.size(), System.currentTimeMillis() - start,
+				statistics().getSecondLevelCachePutCount());
+	}
+
+	private Statistics statistics() {
+		return entityManager.getEntityManagerFactory()
+				.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	/**
+	 * @return how often the second-level cache was hit, overall and by region,
+	 * and how much was loaded from the database instead
+	 */
+	public Map<String, Object> stats() {
+		Statistics s = statistics();
+		Map<String, Object> result = new LinkedHashMap<>();
+		long hits = s.getSecondLevelCacheHitCount();
+		long misses = s.getSecondLevelCacheMissCount();
+		result.put("hits", hits);
+		result.put("misses", misses);
+		result.put("puts", s.getSecondLevelCachePutCount());
+		result.put("hitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+		result.put("queries", s.getQueryExecutionCount());
+		result.put("entitiesLoaded", s.getEntityLoadCount());
+		result.put("collectionsLoaded", s.getCollectionLoadCount());
+		Map<String, Object> regions = new LinkedHashMap<>();
+		for (String name : AppConfig.CACHE_REGIONS) {
+			CacheRegionStatistics r = s.getDomainDataRegionStatistics(name);
+			Map<String, Object> region = new LinkedHashMap<>();
+			region.put("hits", r.getHitCount());
+			region.put("misses", r.getMissCount());
+			region.put("puts", r.getPutCount());
+			regions.put(name, region);
+		}
+		result.put("regions", regions);
+		return result;
+	}
+
+	private <T> List<T> fetch(Class<T> type, String jpql, String name, Object value) {
+		return entityManager.createQuery(jpql, type)
+				.setParameter(name, value)
+				.getResultList();
+	}
+
+	/**
+	 * Fetches users' students and classes, to write their refs
+	 * @param which users, as a JPQL condition on "o", with a single parameter
+	 */
+	private void loadUsers(String which, String name, Object value) {
+		fetch(User.class, "select distinct o from User o left join fetch o.students "
+				+ "where " + which, name, value);
+		fetch(User.class, "select distinct o from User o left join fetch o.classes "
+				+ "where " + which, name, value);
+	}
+
+	private void loadInstance(Instance i) {
+		fetch(EClass.class, "select distinct c from EClass c left join fetch c.teachers "
+				+ "where c.instance = :i", "i", i);
+		fetch(EClass.class, "select distinct c from EClass c left join fetch c.students "
+				+ "where c.instance = :i", "i", i);
+		fetch(Student.class, "select distinct s from Student s left join fetch s.guardians "
+				+ "where s.instance = :i", "i", i);
+		loadUsers("o.instance = :i", "i", i);
+		// already loaded; but the instance's own lists are not, yet
+		i.getClasses().size();
+		i.getStudents().size();
+		i.getUsers().size();
+	}
+
+	private void loadClasses(User teacher) {
+		fetch(User.class, "select distinct o from User o left join fetch o.classes "
+				+ "where o = :u", "u", teacher);
+		if (teacher.getClasses().isEmpty()) {
+			return;
+		}
+		Set<EClass> classes = teacher.getClasses();
+		fetch(EClass.class, "select distinct c from EClass c left join fetch c.teachers "
+				+ "where c in :cs", "cs", classes);
+		fetch(EClass.class, "select distinct c from EClass c left join fetch c.students "
+				+ "where c in :cs", "cs", classes);
+		fetch(Student.class, "select distinct s from Student s left join fetch s.guardians "
+				+ "where s.EClass in :cs", "cs", classes);
+		// their teachers, and their students' guardians
+		loadUsers("o in (select t from EClass c join c.teachers t where c in :cs) "
+				+ "or o in (select g from Student s join s.guardians g where s.EClass in :cs)",
+				"cs", classes);
+	}
+
+	private void loadStudents(User guardian) {
+		fetch(User.class, "select distinct o from User o left join fetch o.students s "
+				+ "left join fetch s.EClass where o = :u", "u", guardian);
+		if (guardian.getStudents().isEmpty()) {
+			return;
+		}
+		Set<Student> students = guardian.getStudents();
+		fetch(Student.class, "select distinct s from Student s left join fetch s.guardians "
+				+ "where s in :ss", "ss", students);
+		fetch(EClass.class, "select distinct c from EClass c left join fetch c.teachers "
+				+ "where c in (select s.EClass from Student s where s in :ss)", "ss", students);
+		// teachers of their students' classes
+		loadUsers("o in (select t from Student s join s.EClass c join c.teachers t where s in :ss)",
+				"ss", students);
+	}
+
+	private void loadMessages(User u, Collection<UMessage> messages) {
+		if (messages == null) {
+			fetch(Message.class, "select distinct m from Message m left join fetch m.to "
+					+ "where m in (select um.message from UMessage um where um.user = :u)", "u", u);
+			fetch(User.class, "select distinct o from User o left join fetch o.sent "
+					+ "where o = :u", "u", u);
+			fetch(User.class, "select distinct o from User o left join fetch o.received "
+					+ "where o = :u", "u", u);
+			return;
+		}
+		List<Long> ids = new ArrayList<>();
+		for (UMessage um : messages) {
+			ids.add(um.getMessage().getId());
+		}
+		for (int from = 0; from < ids.size(); from += CHUNK) {
+			fetch(Message.class, "select distinct m from Message m left join fetch m.to "
+					+ "where m.id in :ids", "ids", ids.subList(from, Math.min(ids.size(), from + CHUNK)));
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package es.ucm.fdi.iw.control;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.ucm.fdi.iw.LocalData;
+import es.ucm.fdi.iw.model.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.util.HtmlUtils;
+
+import javax.persistence.EntityManager;
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Exports instances as NDJSON: one line per class, student, user and message,
+ * each an object with a single field, named after its kind ("classes",
+ * "students", "users" or "messages"), holding what InstanceImporter expects
+ * for that kind. Exports can therefore be imported back.
+ *
+ * Everything is read via forward-only, read-only cursors over plain columns,
+ * so nothing is loaded into the persistence context; and written out as it is
+ * read. Links (teachers of classes, guardians of students, recipients and
+ * copies of messages) are read via separate cursors, in the same order, and
+ * merged in.
+ *
+ * Also backs up every instance, every so often, into LocalData.
+ */
+@Component
+public class InstanceExporter {
+
+	private static final Logger log = LogManager.getLogger(InstanceExporter.class);
+
+	public static final String BACKUP_FOLDER = "backups";
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private LocalData localData;
+
+	/**
+	 * Rows of a cursor, ordered by their first column (an id), that can be
+	 * taken in step with another cursor ordered by the same ids.
+	 */
+	private static class Rows implements Closeable {
+		private final ScrollableResults results;
+		private Object[] row;
+
+		private Rows(ScrollableResults results) {
+			this.results = results;
+			advance();
+		}
+
+		private void advance() {
+			row = results.next() ? results.get() : null;
+		}
+
+		/**
+		 * @return the rows for an id; rows for any earlier ids are skipped
+		 */
+		private List<Object[]> take(long id) {
+			List<Object[]> taken = new ArrayList<>();
+			while (row != null && (Long) row[0] < id) {
+				advance();
+			}
+			while (row != null && (Long) row[0] == id) {
+				taken.add(row);
+				advance();
+			}
+			return taken;
+		}
+
+		@Override
+		public void close() {
+			results.close();
+		}
+	}
+
+	private Rows scroll(String hql, long instanceId) {
+		int fetchSize = env.getProperty("es.ucm.fdi.export.fetch-size", Integer.class, 500);
+		return new Rows(entityManager.unwrap(Session.class)
+				.createQuery(hql)
+				.setParameter("i", instanceId)
+				.setReadOnly(true)
+				.setFetchSize(fetchSize)
+				.scroll(ScrollMode.FORWARD_ONLY));
+	}
+
+	private static void writeStrings(JsonGenerator g, String field, List<Object[]> rows, int column)
+			throws IOException {
+		g.writeArrayFieldStart(field);
+		for (Object[] row : rows) {
+			g.writeString((String) row[column]);
+		}
+		g.writeEndArray();
+	}
+
+	private static void writeCopies(JsonGenerator g, String field, List<Object[]> rows)
+			throws IOException {
+		g.writeArrayFieldStart(field);
+		for (Object[] row : rows) {
+			g.writeStartObject();
+			g.writeStringField("uid", (String) row[1]);
+			g.writeStringField("labels", (String) row[2]);
+			if (Boolean.TRUE.equals(row[3])) {
+				g.writeBooleanField("hidden", true);
+			}
+			g.writeEndObject();
+		}
+		g.writeEndArray();
+	}
+
+	/**
+	 * Writes everything in an instance. Runs in its own read-only transaction.
+	 *
+	 * @return how many things of each kind were written
+	 */
+	public Map<String, Object> export(long instanceId, OutputStream out) {
+		TransactionTemplate tx = new TransactionTemplate(transactionManager);
+		tx.setReadOnly(true);
+		return tx.execute(status -> {
+			try {
+				return write(instanceId, out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	private Map<String, Object> write(long instanceId, OutputStream out) throws IOException {
+		Map<String, Object> counts = new LinkedHashMap<>();
+		JsonGenerator g = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+		g.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+		long n = 0;
+
+		try (Rows classes = scroll("select id, cid from EClass "
+						+ "where instance.id = :i order by id", instanceId);
+			 Rows teachers = scroll("select c.id, t.uid from EClass c join c.teachers t "
+					 	+ "where c.instance.id = :i order by c.id, t.uid", instanceId)) {
+			for (; classes.row != null; classes.advance(), n++) {
+				Object[] c = classes.row;
+				g.writeStartObject();
+				g.writeObjectFieldStart("classes");
+				g.writeStringField("cid", (String) c[1]);
+				writeStrings(g, "teachers", teachers.take((Long) c[0]), 1);
+				g.writeEndObject();
+				g.writeEndObject();
+			}
+		}
+		counts.put("classes", n);
+
+		n = 0;
+		try (Rows students = scroll("select s.id, s.sid, s.firstName, s.lastName, c.cid "
+						+ "from Student s left join s.EClass c "
+						+ "where s.instance.id = :i order by s.id", instanceId);
+			 Rows guardians = scroll("select s.id, g.uid from Student s join s.guardians g "
+					 	+ "where s.instance.id = :i order by s.id, g.uid", instanceId)) {
+			for (; students.row != null; students.advance(), n++) {
+				Object[] s = students.row;
+				g.writeStartObject();
+				g.writeObjectFieldStart("students");
+				g.writeStringField("sid", (String) s[1]);
+				g.writeStringField("first_name", (String) s[2]);
+				g.writeStringField("last_name", (String) s[3]);
+				if (s[4] != null) {
+					g.writeStringField("cid", (String) s[4]);
+				}
+				writeStrings(g, "guardians", guardians.take((Long) s[0]), 1);
+				g.writeEndObject();
+				g.writeEndObject();
+			}
+		}
+		counts.put("students", n);
+
+		n = 0;
+		// class mailboxes are created along with their classes
+		try (Rows users = scroll("select id, uid, roles, firstName, lastName, telephones, password "
+				+ "from User where instance.id = :i and roleMask <> " + User.Role.CLASS.mask()
+				+ " order by id", instanceId)) {
+			for (; users.row != null; users.advance(), n++) {
+				Object[] u = users.row;
+				g.writeStartObject();
+				g.writeObjectFieldStart("users");
+				g.writeStringField("uid", (String) u[1]);
+				g.writeStringField("type", ((String) u[2]).toLowerCase());
+				g.writeStringField("first_name", (String) u[3]);
+				g.writeStringField("last_name", (String) u[4]);
+				g.writeArrayFieldStart("tels");
+				if (u[5] != null) {
+					for (String tel : ((String) u[5]).split(",")) {
+						if ( ! tel.isEmpty()) {
+							g.writeString(tel);
+						}
+					}
+				}
+				g.writeEndArray();
+				g.writeStringField("password_hash", (String) u[6]);
+				g.writeEndObject();
+				g.writeEndObject();
+			}
+		}
+		counts.put("users", n);
+
+		n = 0;
+		try (Rows messages = scroll("select m.id, m.mid, m.date, f.uid, m.subject, m.body, p.mid "
+						+ "from Message m left join m.from f left join m.parent p "
+						+ "where m.instance.id = :i order by m.id", instanceId);
+			 Rows to = scroll("select m.id, u.uid from Message m join m.to u "
+					 	+ "where m.instance.id = :i order by m.id, u.uid", instanceId);
+			 Rows sent = scroll("select m.id, u.uid, um.labels, um.hidden from User u join u.sent um "
+					 	+ "join um.message m where m.instance.id = :i order by m.id, u.uid", instanceId);
+			 // including those shared by class mailboxes
+			 Rows received = scroll("select m.id, u.uid, um.labels, um.hidden from User u join u.received um "
+					 	+ "join um.message m where m.instance.id = :i order by m.id, u.uid", instanceId)) {
+			for (; messages.row != null; messages.advance(), n++) {
+				Object[] m = messages.row;
+				long id = (Long) m[0];
+				g.writeStartObject();
+				g.writeObjectFieldStart("messages");
+				g.writeStringField("msgid", (String) m[1]);
+				g.writeStringField("date", (String) m[2]);
+				g.writeStringField("from", (String) m[3]);
+				writeStrings(g, "to", to.take(id), 1);
+				// as sent, before escaping; it will be escaped again on import
+				g.writeStringField("title", HtmlUtils.htmlUnescape((String) m[4]));
+				g.writeStringField("body", (String) m[5]);
+				if (m[6] != null) {
+					g.writeStringField("parent", (String) m[6]);
+				}
+				writeCopies(g, "sent", sent.take(id));
+				writeCopies(g, "received", received.take(id));
+				g.writeEndObject();
+				g.writeEndObject();
+			}
+		}
+		counts.put("messages", n);
+
+		g.writeRaw('\n');
+		g.flush();
+		return counts;
+	}
+
+	/**
+	 * Backs up every instance into its own file, and deletes all but the latest
+	 * few backups of each. Backups are written to a temporary file first, so
+	 * that only complete backups are ever kept.
+	 */
+	@Scheduled(fixedDelayString = "${es.ucm.fdi.backup.every-ms:86400000}",
+			initialDelayString = "${es.ucm.fdi.backup.every-ms:86400000}")
+	public void backup() {
+		int keep = env.getProperty("es.ucm.fdi.backup.keep", Integer.class, 7);
+		List<Long> instances = new TransactionTemplate(transactionManager).execute(status ->
+				entityManager.createQuery("select id from Instance order by id", Long.class)
+						.getResultList());
+		String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		for (long id : instances) {
+			File target = localData.getFile(BACKUP_FOLDER, "instance-" + id + "-" + stamp + ".ndjson");
+			File partial = new File(target.getPath() + ".partial");
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(partial))) {
+				Map<String, Object> counts = export(id, out);
+				log.info("Backed up instance {} into {}: {}", id, target, counts);
+			} catch (IOException | RuntimeException e) {
+				log.warn("Could not back up instance " + id, e);
+				partial.delete();
+				continue;
+			}
+			if ( ! partial.renameTo(target)) {
+				log.warn("Could not rename {} to {}", partial, target);
+				continue;
+			}
+
+			// backup names sort by date
+			String prefix = "instance-" + id + "-";
+			File[] old = localData.getFolder(BACKUP_FOLDER).listFiles((dir, name) ->
+					name.startsWith(prefix) && name.endsWith(".ndjson"));
+			if (old != null && old.length > keep) {
+				Arrays.sort(old);
+				for (int i = 0; i < old.length - keep; i++) {
+					old[i].delete();
+				}
+			}
+		}
+	}
+}
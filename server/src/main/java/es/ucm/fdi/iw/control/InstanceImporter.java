@@ -0,0 +1,692 @@
+package es.ucm.fdi.iw.control;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import es.ucm.fdi.iw.control.ApiController.ApiException;
+import es.ucm.fdi.iw.model.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Strings;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.HtmlUtils;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Imports many classes, students, users and messages at once, from documents
+ * shaped like sample.json: an object with arrays of "classes", "students",
+ * "users" and "messages", each element as /addclass, /addstudent, /adduser
+ * and /send would expect it (except that users need no password, and may have
+ * no telephones).
+ *
+ * Exports (see InstanceExporter) can also be imported: they are a series of
+ * such objects, one per line, each with a single element per section instead
+ * of an array. They also carry what /send would not let clients choose: users
+ * with several roles or only a password hash, and messages with their copies
+ * (and labels) for each user, which are then used instead of delivering them.
+ *
+ * Documents are read with a streaming parser, one element at a time. Only refs
+ * and ids are kept in memory; entities are persisted as they are read, and
+ * the persistence context is flushed and cleared every few hundred of them.
+ * Links between classes, students and users (which may point further ahead in
+ * the document) are written to their join tables in JDBC batches, once both
+ * ends are known. Messages can only mention users and classes that appear
+ * before them, and are delivered right away (to classes, too; /send leaves
+ * that to the DeliveryWorker). Instances where classes share their messages
+ * (see Instance.ClassDelivery) get a single copy per class instead.
+ *
+ * All or nothing: an error anywhere rolls back the whole import.
+ */
+@Component
+public class InstanceImporter {
+
+	private static final Logger log = LogManager.getLogger(InstanceImporter.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private PasswordHasher passwordHasher;
+
+	@Autowired
+	private StateCache stateCache;
+
+	@Autowired
+	private RefIndex refIndex;
+
+	// imports under way, by instance id
+	private final Map<Long, Progress> running = new ConcurrentHashMap<>();
+
+	/**
+	 * How far an import has got. Only updated by the importing thread.
+	 */
+	public static class Progress {
+		private final long started = System.currentTimeMillis();
+		private volatile long classes, students, users, messages, links;
+
+		private long total() {
+			return classes + students + users + messages;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("classes", classes);
+			result.put("students", students);
+			result.put("users", users);
+			result.put("messages", messages);
+			result.put("links", links);
+			result.put("millis", System.currentTimeMillis() - started);
+			return result;
+		}
+	}
+
+	/**
+	 * Things of one type in the instance being imported into: their ids by ref,
+	 * which of them were there before the import, and which of those must be
+	 * marked as changed because they got new links.
+	 */
+	private static class Kind {
+		private final Class<?> type;
+		private final String refField;
+		private final Map<String, Long> ids = new HashMap<>();
+		private long lastExisting = -1;
+		private final Set<Long> touched = new HashSet<>();
+
+		private Kind(Class<?> type, String refField) {
+			this.type = type;
+			this.refField = refField;
+		}
+
+		private long id(String ref) {
+			Long id = ids.get(ref);
+			if (id != null && id <= lastExisting) {
+				touched.add(id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * A many-to-many relation between two kinds of things, stored in up to two
+	 * join tables (one per side that owns it; see collection roles).
+	 */
+	private static class Relation {
+		private final Kind left, right;
+		private final String leftRole, rightRole;
+		private final Set<String> seen = new HashSet<>();
+		private List<String[]> pending = new ArrayList<>();
+
+		private Relation(Kind left, String leftRole, Kind right, String rightRole) {
+			this.left = left;
+			this.leftRole = leftRole;
+			this.right = right;
+			this.rightRole = rightRole;
+		}
+
+		private void add(String leftRef, String rightRef) {
+			if (seen.add(leftRef + '\n' + rightRef)) {
+				pending.add(new String[] {leftRef, rightRef});
+			}
+		}
+	}
+
+	private static String role(Class<?> owner, String property) {
+		return owner.getName() + "." + property;
+	}
+
+	/**
+	 * A single import.
+	 */
+	private class Run {
+		private final long instanceId;
+		private final long version;
+		private final boolean shared;
+		private final int batchSize;
+		private final int progressEvery;
+		private final Progress progress = new Progress();
+		private int unflushed;
+		private long lastReported;
+
+		private final Kind classes = new Kind(EClass.class, "cid");
+		private final Kind users = new Kind(User.class, "uid");
+		private final Kind students = new Kind(Student.class, "sid");
+		private final Kind messages = new Kind(Message.class, "mid");
+		// class mailboxes: uids (which are also cids) by id
+		private final Map<Long, String> mailboxes = new HashMap<>();
+		private final Map<Long, List<Long>> guardiansByClass = new HashMap<>();
+
+		private final Relation classStudents = new Relation(
+				classes, role(EClass.class, "students"), students, null);
+		private final Relation classTeachers = new Relation(
+				classes, role(EClass.class, "teachers"), users, role(User.class, "classes"));
+		private final Relation guardians = new Relation(
+				students, role(Student.class, "guardians"), users, role(User.class, "students"));
+
+		private Run(ChangeSet changes) {
+			this.instanceId = changes.getInstance().getId();
+			this.version = changes.getVersion();
+			this.shared = changes.getInstance().getClassDelivery() == Instance.ClassDelivery.SHARED;
+			this.batchSize = env.getProperty("es.ucm.fdi.import.batch-size", Integer.class, 500);
+			this.progressEvery = env.getProperty("es.ucm.fdi.import.progress-every", Integer.class, 10000);
+			for (Kind k : new Kind[] {classes, users, students, messages}) {
+				load(k);
+			}
+			for (Object[] row : entityManager.createQuery(
+					"select id, uid from User where instance.id = :i and roleMask = :m", Object[].class)
+					.setParameter("i", instanceId)
+					.setParameter("m", User.Role.CLASS.mask())
+					.getResultList()) {
+				mailboxes.put((Long) row[0], (String) row[1]);
+			}
+		}
+
+		private void load(Kind k) {
+			List<Object[]> rows = entityManager.createQuery(
+					"select " + k.refField + ", id from " + k.type.getSimpleName()
+							+ " where instance.id = :i",
+					Object[].class)
+					.setParameter("i", instanceId)
+					.getResultList();
+			for (Object[] row : rows) {
+				long id = (Long) row[1];
+				if (row[0] != null) {
+					k.ids.put((String) row[0], id);
+				}
+				k.lastExisting = Math.max(k.lastExisting, id);
+			}
+		}
+
+		private Instance instance() {
+			return entityManager.getReference(Instance.class, instanceId);
+		}
+
+		private void checkNew(Kind k, String ref, String what) {
+			if (ref.isEmpty()) {
+				throw new ApiException("Empty " + what, null);
+			} else if (k.ids.containsKey(ref)) {
+				throw new ApiException("Duplicate " + what + ": " + ref, null);
+			}
+		}
+
+		private List<String> refs(JsonNode n, String field) {
+			List<String> result = new ArrayList<>();
+			for (JsonNode r : n.path(field)) {
+				result.add(r.asText());
+			}
+			return result;
+		}
+
+		private String nonEmpty(JsonNode n, String field) {
+			String s = n.path(field).asText();
+			if (s.isEmpty()) {
+				throw new ApiException("Missing " + field, null);
+			}
+			return s;
+		}
+
+		private void importClass(JsonNode n) {
+			String cid = nonEmpty(n, "cid");
+			checkNew(classes, cid, "class ref");
+			checkNew(users, cid, "user id (for class mailbox)");
+			EClass ec = new EClass();
+			ec.setCid(cid);
+			ec.setInstance(instance());
+			ec.setChanged(version);
+			entityManager.persist(ec);
+			classes.ids.put(cid, ec.getId());
+
+			// as in /addclass
+			User mailbox = new User();
+			mailbox.setRoles("" + User.Role.CLASS);
+			mailbox.setEnabled((byte)1);
+			mailbox.setInstance(instance());
+			mailbox.setUid(cid);
+			mailbox.setPassword("!");
+			mailbox.setChanged(version);
+			entityManager.persist(mailbox);
+			users.ids.put(cid, mailbox.getId());
+			mailboxes.put(mailbox.getId(), cid);
+
+			for (String sid : refs(n, "students")) {
+				classStudents.add(cid, sid);
+			}
+			for (String uid : refs(n, "teachers")) {
+				classTeachers.add(cid, uid);
+			}
+			progress.classes++;
+			persisted(2);
+		}
+
+		private void importStudent(JsonNode n) {
+			String sid = nonEmpty(n, "sid");
+			checkNew(students, sid, "student id");
+			Student s = new Student();
+			s.setSid(sid);
+			s.setFirstName(nonEmpty(n, "first_name"));
+			s.setLastName(nonEmpty(n, "last_name"));
+			s.setInstance(instance());
+			s.setChanged(version);
+			entityManager.persist(s);
+			students.ids.put(sid, s.getId());
+
+			if (n.hasNonNull("cid")) {
+				classStudents.add(n.get("cid").asText(), sid);
+			}
+			for (String uid : refs(n, "guardians")) {
+				guardians.add(sid, uid);
+			}
+			progress.students++;
+			persisted(1);
+		}
+
+		private void importUser(JsonNode n) {
+			String uid = nonEmpty(n, "uid");
+			checkNew(users, uid, "user id");
+			// exports may have several roles, as in "admin,teacher"
+			List<String> roles = new ArrayList<>();
+			for (String type : nonEmpty(n, "type").split(",")) {
+				User.Role role;
+				try {
+					role = User.Role.valueOf(type.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					role = null;
+				}
+				if (role == null || role == User.Role.CLASS) {
+					throw new ApiException("Bad user type: " + n.path("type").asText(), null);
+				}
+				roles.add("" + role);
+			}
+			User u = new User();
+			u.setUid(uid);
+			u.setRoles(Strings.join(roles, ','));
+			u.setEnabled((byte)1);
+			u.setFirstName(nonEmpty(n, "first_name"));
+			u.setLastName(nonEmpty(n, "last_name"));
+			List<String> tels = refs(n, "tels");
+			for (String tel : tels) {
+				if ( ! ApiController.isValidTel(tel)) {
+					throw new ApiException(
+							"Bad phone: expected ddd-ddd-ddd, with d a digit. Got " + tel, null);
+				}
+			}
+			u.setTelephones(Strings.join(tels, ','));
+			if (n.has("password")) {
+				String pass = n.get("password").asText();
+				if ( ! ApiController.isValidPass(pass)) {
+					throw new ApiException("Invalid password", null);
+				}
+				u.setPassword(passwordHasher.encode(pass));
+			} else if (n.has("password_hash")) {
+				// as exported; already encoded
+				u.setPassword(nonEmpty(n, "password_hash"));
+			} else {
+				// cannot log in until an admin sets a password
+				u.setPassword("!");
+			}
+			u.setInstance(instance());
+			u.setChanged(version);
+			entityManager.persist(u);
+			users.ids.put(uid, u.getId());
+
+			// as in /adduser, classes are only for teachers, and students for guardians
+			if (u.hasRole(User.Role.TEACHER)) {
+				for (String cid : refs(n, "classes")) {
+					classTeachers.add(cid, uid);
+				}
+			}
+			if (u.hasRole(User.Role.GUARDIAN)) {
+				for (String sid : refs(n, "students")) {
+					guardians.add(sid, uid);
+				}
+			}
+			progress.users++;
+			persisted(1);
+		}
+
+		private long user(String uid) {
+			if ( ! users.ids.containsKey(uid)) {
+				throw new ApiException("User with uid " + uid + " not found", null);
+			}
+			return users.ids.get(uid);
+		}
+
+		private UMessage copy(Message m, long userId, String labels, UMessage.Direction direction) {
+			UMessage um = new UMessage();
+			um.setMessage(m);
+			um.setUser(entityManager.getReference(User.class, userId));
+			um.setLabels(labels);
+			um.setDirection(direction);
+			um.setChanged(version);
+			entityManager.persist(um);
+			return um;
+		}
+
+		private List<Long> guardiansOf(String cid) {
+			Long classId = classes.ids.get(cid);
+			if (classId == null) {
+				return Collections.emptyList();
+			}
+			return guardiansByClass.computeIfAbsent(classId, c -> entityManager.createQuery(
+					"select distinct g.id from Student s join s.guardians g where s.EClass.id = :c",
+					Long.class)
+					.setParameter("c", c)
+					.getResultList());
+		}
+
+		private void importMessage(JsonNode n) {
+			String mid = nonEmpty(n, "msgid");
+			checkNew(messages, mid, "message id");
+			Message m = new Message();
+			m.setMid(mid);
+			m.setInstance(instance());
+			// exported messages carry their copies, and may have lost their senders
+			boolean copied = n.has("sent") || n.has("received");
+			Long fromId = copied && ! n.hasNonNull("from") ? null : user(nonEmpty(n, "from"));
+			if (fromId != null) {
+				m.setFrom(entityManager.getReference(User.class, fromId));
+			}
+
+			if (n.has("date")) {
+				String date = n.get("date").asText();
+				LocalDateTime d;
+				try {
+					d = Message.parseDate(date);
+				} catch (DateTimeParseException e) {
+					throw new ApiException("Bad message date: " + date, null);
+				}
+				if (d.isAfter(LocalDateTime.now())) {
+					throw new ApiException("Message dates must be in the past", null);
+				}
+				m.setDate(Message.DATE_FORMAT.format(d));
+			} else {
+				m.setDate(Message.DATE_FORMAT.format(LocalDateTime.now()));
+			}
+			m.setSubject(HtmlUtils.htmlEscape(nonEmpty(n, "title")));
+			m.setBody(ApiController.whitelistHtml(n.path("body").asText()));
+
+			List<Long> to = new ArrayList<>();
+			if (n.hasNonNull("parent")) {
+				Long parentId = messages.ids.get(n.get("parent").asText());
+				if (parentId == null) {
+					throw new ApiException("Parent message " + n.get("parent").asText() + " not found", null);
+				}
+				Message parent = entityManager.find(Message.class, parentId);
+				m.setParent(parent);
+				if ( ! n.has("to") && parent.getFrom() != null) {
+					to.add(parent.getFrom().getId());
+				}
+			}
+			for (String uid : refs(n, "to")) {
+				to.add(user(uid));
+			}
+			if (to.isEmpty() && ! copied) {
+				throw new ApiException("Parent message, or at least 1 to-user must be specified", null);
+			}
+			for (long id : to) {
+				m.getTo().add(entityManager.getReference(User.class, id));
+			}
+			entityManager.persist(m);
+			messages.ids.put(mid, m.getId());
+
+			if (copied) {
+				int copies = 0;
+				for (String field : new String[] {"sent", "received"}) {
+					for (JsonNode c : n.path(field)) {
+						copy(m, user(nonEmpty(c, "uid")), c.path("labels").asText(),
+								field.equals("sent") ? UMessage.Direction.SENT : UMessage.Direction.RECEIVED)
+								.setHidden(c.path("hidden").asBoolean());
+						copies++;
+					}
+				}
+				progress.messages++;
+				persisted(1 + copies);
+				return;
+			}
+
+			// same labels for every copy, if given; otherwise, as in /send
+			List<String> labels = refs(n, "labels");
+			String given = labels.isEmpty() ? null : Strings.join(labels, ',');
+			copy(m, fromId, given == null ? "sent, read" : given, UMessage.Direction.SENT);
+			Set<Long> targets = new LinkedHashSet<>();
+			for (long id : to) {
+				if (mailboxes.containsKey(id) && shared) {
+					targets.add(id);
+				} else if (mailboxes.containsKey(id)) {
+					// as in /send, deliver to each guardian of the class
+					targets.addAll(guardiansOf(mailboxes.get(id)));
+				} else {
+					targets.add(id);
+				}
+			}
+			for (long id : targets) {
+				copy(m, id, given == null ? "received" : given, UMessage.Direction.RECEIVED);
+			}
+			progress.messages++;
+			persisted(2 + targets.size());
+		}
+
+		private void persisted(int count) {
+			unflushed += count;
+			if (unflushed >= batchSize) {
+				flushAndClear();
+			}
+			if (progress.total() - lastReported >= progressEvery) {
+				lastReported = progress.total();
+				log.info("Importing into instance {}: {}", instanceId, progress.toMap());
+			}
+		}
+
+		private void flushAndClear() {
+			entityManager.flush();
+			entityManager.clear();
+			unflushed = 0;
+		}
+
+		/**
+		 * Inserts rows into the join table of a collection, unless owned by the other side.
+		 * @param swap if rows are (element, owner) instead of (owner, element)
+		 */
+		private void insert(String role, List<Object[]> rows, boolean swap) {
+			if (role == null || rows.isEmpty()) {
+				return;
+			}
+			AbstractCollectionPersister p = (AbstractCollectionPersister) entityManager
+					.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+					.getMetamodel().collectionPersister(role);
+			if (p.isInverse()) {
+				return;
+			}
+			String sql = "insert into " + p.getTableName()
+					+ " (" + p.getKeyColumnNames()[0] + ", " + p.getElementColumnNames()[0] + ")"
+					+ " values (?, ?)";
+			List<Object[]> batch = new ArrayList<>(Math.min(rows.size(), batchSize));
+			for (Object[] row : rows) {
+				batch.add(swap ? new Object[] {row[1], row[0]} : row);
+				if (batch.size() == batchSize) {
+					jdbcTemplate.batchUpdate(sql, batch);
+					batch.clear();
+				}
+			}
+			if ( ! batch.isEmpty()) {
+				jdbcTemplate.batchUpdate(sql, batch);
+			}
+		}
+
+		/**
+		 * Bulk-updates things in chunks of ids.
+		 * @param jpql with an :ids parameter
+		 */
+		private void update(String jpql, Collection<Long> ids, Map<String, Object> params) {
+			List<Long> chunk = new ArrayList<>();
+			Iterator<Long> it = ids.iterator();
+			while (it.hasNext()) {
+				chunk.add(it.next());
+				if (chunk.size() == batchSize || ! it.hasNext()) {
+					javax.persistence.Query q = entityManager.createQuery(jpql).setParameter("ids", chunk);
+					params.forEach(q::setParameter);
+					q.executeUpdate();
+					chunk.clear();
+				}
+			}
+		}
+
+		/**
+		 * Writes links whose ends are both known.
+		 * @param all if links with unknown ends should be reported (otherwise, they
+		 *            are kept for later)
+		 */
+		private void writeLinks(boolean all) {
+			flushAndClear();
+			Map<Long, List<Long>> studentsByClass = new HashMap<>();
+			for (Relation r : new Relation[] {classStudents, classTeachers, guardians}) {
+				List<Object[]> rows = new ArrayList<>();
+				List<String[]> later = new ArrayList<>();
+				for (String[] pair : r.pending) {
+					if ( ! r.left.ids.containsKey(pair[0]) || ! r.right.ids.containsKey(pair[1])) {
+						if (all) {
+							Kind missing = r.left.ids.containsKey(pair[0]) ? r.right : r.left;
+							String ref = missing == r.left ? pair[0] : pair[1];
+							throw new ApiException(missing.type.getSimpleName()
+									+ " " + ref + " not found", null);
+						}
+						later.add(pair);
+						continue;
+					}
+					long left = r.left.id(pair[0]), right = r.right.id(pair[1]);
+					rows.add(new Object[] {left, right});
+					if (r == classStudents) {
+						studentsByClass.computeIfAbsent(left, k -> new ArrayList<>()).add(right);
+					}
+				}
+				insert(r.leftRole, rows, false);
+				insert(r.rightRole, rows, true);
+				progress.links += rows.size();
+				r.pending = later;
+			}
+			// students belong to (at most) one class; "versioned" bumps their revisions
+			for (Map.Entry<Long, List<Long>> e : studentsByClass.entrySet()) {
+				update("update versioned Student set EClass = :c where id in :ids", e.getValue(),
+						Collections.singletonMap("c", entityManager.getReference(EClass.class, e.getKey())));
+			}
+			guardiansByClass.clear();
+		}
+
+		private Map<String, Object> run(JsonParser p) throws IOException {
+			Map<String, ImportFunction> sections = new HashMap<>();
+			sections.put("classes", this::importClass);
+			sections.put("students", this::importStudent);
+			sections.put("users", this::importUser);
+			sections.put("messages", this::importMessage);
+
+			// elements read so far, by section, to report where errors are
+			Map<String, Integer> read = new HashMap<>();
+			String last = null;
+			JsonToken root = p.nextToken();
+			if (root != JsonToken.START_OBJECT) {
+				throw new ApiException("Expected an object with " + sections.keySet(), null);
+			}
+			for (; root == JsonToken.START_OBJECT; root = p.nextToken()) {
+				while (p.nextToken() == JsonToken.FIELD_NAME) {
+					String section = p.getCurrentName();
+					JsonToken t = p.nextToken();
+					ImportFunction f = sections.get(section);
+					if (f == null) {
+						p.skipChildren();
+						continue;
+					} else if (t != JsonToken.START_ARRAY && t != JsonToken.START_OBJECT) {
+						throw new ApiException("Expected an array of " + section, null);
+					}
+					if (section.equals("messages") && ! section.equals(last)) {
+						// so that messages to classes reach their guardians
+						writeLinks(false);
+					}
+					last = section;
+					boolean single = t == JsonToken.START_OBJECT;
+					while (single || p.nextToken() != JsonToken.END_ARRAY) {
+						JsonNode n = p.readValueAsTree();
+						int i = read.merge(section, 1, Integer::sum) - 1;
+						try {
+							f.accept(n);
+						} catch (ApiException e) {
+							throw new ApiException("While importing " + section
+									+ "[" + i + "]: " + e.getMessage(), null);
+						}
+						if (single) {
+							break;
+						}
+					}
+				}
+			}
+			if (root != null) {
+				throw new ApiException("Expected only objects with " + sections.keySet(), null);
+			}
+			writeLinks(true);
+
+			// things that were already there, but now have new links; with new
+			// revisions, so that concurrent edits to them are seen as conflicts
+			for (Kind k : new Kind[] {classes, users, students}) {
+				update("update versioned " + k.type.getSimpleName() + " set changed = :v where id in :ids",
+						k.touched, Collections.singletonMap("v", version));
+			}
+			log.info("Imported into instance {}: {}", instanceId, progress.toMap());
+			return progress.toMap();
+		}
+	}
+
+	private interface ImportFunction {
+		void accept(JsonNode n);
+	}
+
+	/**
+	 * Imports a document into an instance. Must be called within a transaction;
+	 * clears the persistence context, so any entities loaded before are detached.
+	 *
+	 * @param changes to the instance being imported into; its version is increased,
+	 *                and everything imported is marked with the new version
+	 * @param p reading the document
+	 * @return how many things were imported
+	 */
+	public Map<String, Object> importInto(ChangeSet changes, JsonParser p) throws IOException {
+		long instanceId = changes.getInstance().getId();
+		Run run = new Run(changes);
+		if (running.putIfAbsent(instanceId, run.progress) != null) {
+			throw new ApiController.ApiBusyException("Already importing into this instance");
+		}
+		try {
+			Map<String, Object> result = run.run(p);
+			result.put("version", run.version);
+			// too much has changed to keep track of who can see it
+			refIndex.invalidateInstance(instanceId);
+			stateCache.invalidateInstance(instanceId);
+			return result;
+		} finally {
+			running.remove(instanceId);
+		}
+	}
+
+	/**
+	 * @return progress of imports under way, by instance id
+	 */
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		running.forEach((id, p) -> result.put("" + id, p.toMap()));
+		return result;
+	}
+}
@@ -0,0 +1,159 @@
+package es.ucm.fdi.iw.control;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs bcrypt password checking on its own, bounded, thread pool.
+ *
+ * Bcrypt is slow on purpose; running it on request threads would let a burst of
+ * logins starve every other request. Instead, work is queued here, and rejected
+ * outright (with an ApiBusyException) if either too much work is pending
+ * overall, or the same uid already has too many checks pending.
+ *
+ * New passwords are encoded on the calling thread instead, which is usually
+ * inside a transaction: it should neither wait behind logins, nor be turned
+ * away halfway through (which would undo a whole /batch or /import).
+ */
+@Component
+public class PasswordHasher {
+
+	private static final Logger log = LogManager.getLogger(PasswordHasher.class);
+
+	@Autowired
+	private Environment env;
+
+	private BCryptPasswordEncoder encoder;
+	private ThreadPoolExecutor pool;
+	private int maxPerUid;
+	private final Map<String, AtomicInteger> pendingByUid = new ConcurrentHashMap<>();
+
+	private final LongAdder hashes = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder hashNanos = new LongAdder();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxHashNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder encodes = new LongAdder();
+	private final LongAdder encodeNanos = new LongAdder();
+
+	@PostConstruct
+	public void init() {
+		int strength = env.getProperty("es.ucm.fdi.bcrypt.strength", Integer.class, 10);
+		int threads = env.getProperty("es.ucm.fdi.bcrypt.threads", Integer.class, 4);
+		int queue = env.getProperty("es.ucm.fdi.bcrypt.queue", Integer.class, 64);
+		maxPerUid = env.getProperty("es.ucm.fdi.bcrypt.max-per-uid", Integer.class, 2);
+
+		encoder = new BCryptPasswordEncoder(strength);
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queue),
+				r -> {
+					Thread t = new Thread(r, "bcrypt-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		log.info("Hashing passwords with strength {} on {} threads, queueing up to {}",
+				strength, threads, queue);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Checks a password, asynchronously.
+	 * @param uid of user whose password is being checked; used to limit
+	 *            concurrent attempts against the same account
+	 * @return a future that completes with whether the password matched
+	 * @throws ApiController.ApiBusyException if too busy to even try
+	 */
+	public CompletableFuture<Boolean> matches(String uid, String rawPassword, String encodedPassword) {
+		AtomicInteger pending = pendingByUid.computeIfAbsent(uid, k -> new AtomicInteger());
+		if (pending.incrementAndGet() > maxPerUid) {
+			release(uid, pending);
+			rejected.increment();
+			throw new ApiController.ApiBusyException("Too many concurrent logins for " + uid);
+		}
+		try {
+			return submit(() -> encoder.matches(rawPassword, encodedPassword))
+					.whenComplete((ok, e) -> release(uid, pending));
+		} catch (ApiController.ApiBusyException e) {
+			release(uid, pending);
+			throw e;
+		}
+	}
+
+	private void release(String uid, AtomicInteger pending) {
+		if (pending.decrementAndGet() <= 0) {
+			pendingByUid.remove(uid, pending);
+		}
+	}
+
+	/**
+	 * Encodes a password, on the calling thread.
+	 */
+	public String encode(String rawPassword) {
+		long started = System.nanoTime();
+		try {
+			return encoder.encode(rawPassword);
+		} finally {
+			encodes.increment();
+			encodeNanos.add(System.nanoTime() - started);
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(Supplier<T> work) {
+		long queued = System.nanoTime();
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				long started = System.nanoTime();
+				waitNanos.add(started - queued);
+				maxWaitNanos.accumulate(started - queued);
+				try {
+					return work.get();
+				} finally {
+					long took = System.nanoTime() - started;
+					hashes.increment();
+					hashNanos.add(took);
+					maxHashNanos.accumulate(took);
+				}
+			}, pool);
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			throw new ApiController.ApiBusyException("Too many concurrent password checks");
+		}
+	}
+
+	public Map<String, Object> stats() {
+		long n = Math.max(1, hashes.sum());
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("hashes", hashes.sum());
+		result.put("rejected", rejected.sum());
+		result.put("active", pool.getActiveCount());
+		result.put("queued", pool.getQueue().size());
+		result.put("avgWaitMs", waitNanos.sum() / n / 1e6);
+		result.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+		result.put("avgHashMs", hashNanos.sum() / n / 1e6);
+		result.put("maxHashMs", maxHashNanos.get() / 1e6);
+		result.put("encoded", encodes.sum());
+		result.put("avgEncodeMs", encodeNanos.sum() / Math.max(1, encodes.sum()) / 1e6);
+		return result;
+	}
+}
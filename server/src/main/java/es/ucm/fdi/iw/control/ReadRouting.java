@@ -0,0 +1,157 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.ReplicaRoutingDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs read-only transactions: without flushes or dirty checking, and on the
+ * replica (see ReplicaRoutingDataSource), unless they are for a token that has
+ * written something so recently that the replica may not have it yet. Those
+ * run on the primary, so that callers always see their own writes.
+ *
+ * A token is taken to have written when a read-write transaction that used it
+ * completes (see writing()), and for es.ucm.fdi.replica.max-lag-ms after that.
+ *
+ * Reads on the replica do not put what they load into the second-level cache:
+ * it could be older than what the primary has, and the cache is shared.
+ */
+@Component
+public class ReadRouting {
+
+	private static final Logger log = LogManager.getLogger(ReadRouting.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private DataSource dataSource;
+
+	private ReplicaRoutingDataSource replicaRouting;
+	private long maxLagMs;
+	// token keys, and when their latest read-write transaction completed
+	private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+
+	private final LongAdder replicaReads = new LongAdder();
+	private final LongAdder primaryReads = new LongAdder();
+
+	@PostConstruct
+	public void init() throws SQLException {
+		replicaRouting = dataSource.unwrap(ReplicaRoutingDataSource.class);
+		maxLagMs = env.getProperty("es.ucm.fdi.replica.max-lag-ms", Long.class, 5000L);
+		log.info(replicaRouting.hasReplica() ?
+				"Reading from replica, except within " + maxLagMs + " ms of a token's writes" :
+				"No replica configured; reading from primary");
+	}
+
+	/**
+	 * Runs a read-only transaction.
+	 * @param token that the read is for; or null if none
+	 */
+	public <T> T read(String token, TransactionCallback<T> action) {
+		Long wrote = token == null ? null : lastWrites.get(token);
+		return read(wrote != null && System.currentTimeMillis() - wrote <= maxLagMs, action);
+	}
+
+	/**
+	 * Runs a read-only transaction on the primary; for things that may not have
+	 * reached the replica yet.
+	 */
+	public <T> T readPrimary(TransactionCallback<T> action) {
+		return read(true, action);
+	}
+
+	private <T> T read(boolean primary, TransactionCallback<T> action) {
+		(primary ? primaryReads : replicaReads).increment();
+
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		tt.setReadOnly(true);
+		ReplicaRoutingDataSource.usePrimary(primary);
+		try {
+			return tt.execute(status -> {
+				Session session = entityManager.unwrap(Session.class);
+				CacheMode mode = session.getCacheMode();
+				if ( ! primary) {
+					session.setCacheMode(CacheMode.GET);
+				}
+				try {
+					return action.doInTransaction(status);
+				} finally {
+					session.setCacheMode(mode);
+				}
+			});
+		} finally {
+			ReplicaRoutingDataSource.usePrimary(false);
+		}
+	}
+
+	/**
+	 * Notes that a token is being used in the current read-write transaction;
+	 * reads for it will go to the primary for a while once it completes.
+	 */
+	public void writing(String token) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCompletion(int status) {
+							wrote(token);
+						}
+					});
+		} else {
+			wrote(token);
+		}
+	}
+
+	/**
+	 * Notes that a token has just written something.
+	 */
+	public void wrote(String token) {
+		lastWrites.put(token, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets writes that the replica must already have.
+	 */
+	@Scheduled(fixedDelayString = "${es.ucm.fdi.replica.prune-every-ms:60000}")
+	public void prune() {
+		long oldest = System.currentTimeMillis() - maxLagMs;
+		lastWrites.values().removeIf(t -> t < oldest);
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("replica", replicaRouting.hasReplica());
+		result.put("replicaReads", replicaReads.sum());
+		result.put("primaryReads", primaryReads.sum());
+		result.put("recentWriters", lastWrites.size());
+		result.put("connections", replicaRouting.stats());
+		return result;
+	}
+}
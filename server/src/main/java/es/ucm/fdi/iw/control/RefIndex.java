@@ -0,0 +1,194 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds classes, users, students and messages by their refs (cid, uid, sid
+ * and mid) without scanning an instance's collections.
+ *
+ * For each instance and type, keeps a map from ref to id. Maps are loaded with
+ * a single query the first time they are needed, and then kept up to date via
+ * added() and removed(). Within a transaction, these take effect right away,
+ * but only for that transaction; other transactions only see them once they
+ * commit, and they are dropped if it rolls back (along with any maps for the
+ * same instances, which may have been loaded while they were pending).
+ */
+@Component
+public class RefIndex {
+
+	@Autowired
+	private EntityManager entityManager;
+
+	private static final Map<Class<?>, String> REF_FIELDS = new HashMap<>();
+	static {
+		REF_FIELDS.put(EClass.class, "cid");
+		REF_FIELDS.put(User.class, "uid");
+		REF_FIELDS.put(Student.class, "sid");
+		REF_FIELDS.put(Message.class, "mid");
+	}
+
+	// per type, per instance id, ids by ref
+	private final Map<Class<?>, ConcurrentHashMap<Long, Map<String, Long>>> indexes = new HashMap<>();
+
+	public RefIndex() {
+		for (Class<?> type : REF_FIELDS.keySet()) {
+			indexes.put(type, new ConcurrentHashMap<>());
+		}
+	}
+
+	/**
+	 * Changes made in the current transaction, not yet visible to others.
+	 * A null id marks a removal.
+	 */
+	private static class Pending extends TransactionSynchronizationAdapter {
+		private final RefIndex index;
+		private final Map<Class<?>, Map<Long, Map<String, Long>>> changes = new HashMap<>();
+
+		private Pending(RefIndex index) {
+			this.index = index;
+		}
+
+		private Map<String, Long> of(Class<?> type, long instanceId) {
+			return changes.computeIfAbsent(type, k -> new HashMap<>())
+					.computeIfAbsent(instanceId, k -> new HashMap<>());
+		}
+
+		@Override
+		public void afterCommit() {
+			changes.forEach((type, byInstance) -> byInstance.forEach((instanceId, refs) ->
+					refs.forEach((ref, id) -> index.apply(type, instanceId, ref, id))));
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			TransactionSynchronizationManager.unbindResource(index);
+			if (status != STATUS_COMMITTED) {
+				// maps loaded during the transaction may include its changes
+				changes.forEach((type, byInstance) ->
+						byInstance.keySet().forEach(index.indexes.get(type)::remove));
+			}
+		}
+	}
+
+	private Pending pending(boolean create) {
+		if ( ! TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Pending p = (Pending) TransactionSynchronizationManager.getResource(this);
+		if (p == null && create) {
+			p = new Pending(this);
+			TransactionSynchronizationManager.bindResource(this, p);
+			TransactionSynchronizationManager.registerSynchronization(p);
+		}
+		return p;
+	}
+
+	private Map<String, Long> load(Class<?> type, long instanceId) {
+		Map<String, Long> refs = new ConcurrentHashMap<>();
+		List<Object[]> rows = entityManager.createQuery(
+				"select " + REF_FIELDS.get(type) + ", id from " + type.getSimpleName()
+						+ " where instance.id = :i", Object[].class)
+				.setParameter("i", instanceId)
+				.getResultList();
+		for (Object[] row : rows) {
+			if (row[0] != null) {
+				refs.put((String) row[0], (Long) row[1]);
+			}
+		}
+		return refs;
+	}
+
+	/**
+	 * @return the id of the thing of the given type with that ref in an instance, or null if none
+	 */
+	public Long get(Instance instance, Class<?> type, String ref) {
+		Pending p = pending(false);
+		if (p != null) {
+			Map<String, Long> mine = p.of(type, instance.getId());
+			if (mine.containsKey(ref)) {
+				return mine.get(ref);
+			}
+		}
+		return indexes.get(type)
+				.computeIfAbsent(instance.getId(), i -> load(type, i))
+				.get(ref);
+	}
+
+	/**
+	 * Notes that something has been persisted (and therefore has an id).
+	 */
+	public void added(Instance instance, Class<?> type, String ref, long id) {
+		change(instance, type, ref, id);
+	}
+
+	/**
+	 * Notes that something is being removed.
+	 */
+	public void removed(Instance instance, Class<?> type, String ref) {
+		change(instance, type, ref, null);
+	}
+
+	private void change(Instance instance, Class<?> type, String ref, Long id) {
+		Pending p = pending(true);
+		if (p != null) {
+			p.of(type, instance.getId()).put(ref, id);
+		} else {
+			apply(type, instance.getId(), ref, id);
+		}
+	}
+
+	private void apply(Class<?> type, long instanceId, String ref, Long id) {
+		// only if loaded; otherwise, it will be loaded from the database when needed
+		indexes.get(type).computeIfPresent(instanceId, (i, refs) -> {
+			if (id == null) {
+				refs.remove(ref);
+			} else {
+				refs.put(ref, id);
+			}
+			return refs;
+		});
+	}
+
+	/**
+	 * Forgets everything about an instance; it will be reloaded if needed.
+	 * Forgets it again once the current transaction commits, in case it was
+	 * reloaded in the meantime.
+	 */
+	public void invalidateInstance(long instanceId) {
+		Runnable r = () -> {
+			for (Map<Long, Map<String, Long>> index : indexes.values()) {
+				index.remove(instanceId);
+			}
+		};
+		r.run();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCommit() {
+							r.run();
+						}
+					});
+		}
+	}
+
+	public Map<String, Object> stats() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		for (Map.Entry<Class<?>, ConcurrentHashMap<Long, Map<String, Long>>> e : indexes.entrySet()) {
+			long refs = 0;
+			for (Map<String, Long> m : e.getValue().values()) {
+				refs += m.size();
+			}
+			result.put(e.getKey().getSimpleName(), refs);
+		}
+		return result;
+	}
+}
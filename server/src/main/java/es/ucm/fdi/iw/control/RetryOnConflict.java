@@ -0,0 +1,20 @@
+package es.ucm.fdi.iw.control;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a @Transactional endpoint as safe to run again, from the start, if its
+ * transaction fails because something it updated was changed concurrently;
+ * see ConflictRetrier.
+ *
+ * Only for endpoints whose request can be read more than once, and whose
+ * effects outside the database can be repeated or are rolled back along with
+ * the transaction.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RetryOnConflict {
+}
@@ -0,0 +1,223 @@
+package es.ucm.fdi.iw.control;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import es.ucm.fdi.iw.model.Token;
+import es.ucm.fdi.iw.model.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the last full GlobalState sent to each token, already serialized,
+ * so that repeated /list calls do not need to rebuild it. States that differ
+ * for the same token (say, because they include fewer messages) are told apart
+ * by a variant string. States are kept per token, rather than per user, because
+ * each includes the token it was sent to.
+ *
+ * Entries are evicted once a ChangeSet commits, but only for its audience: users
+ * that could see something that changed. To avoid re-caching a state that was
+ * built from data that was just changed, callers take a stamp() before reading
+ * anything, and put() discards states for instances that changed since.
+ *
+ * It also remembers the latest known version of each instance, so that clients
+ * can check whether their state is still current without going to the database.
+ */
+@Component
+public class StateCache {
+
+	private static final Logger log = LogManager.getLogger(StateCache.class);
+
+	@Autowired
+	private Environment env;
+
+	private Cache<String, Entry> cache;
+
+	// increases with each eviction; and the last value seen for each instance
+	private final AtomicLong evictions = new AtomicLong();
+	private final Map<Long, Long> lastEvicted = new ConcurrentHashMap<>();
+	private final LongAdder rejected = new LongAdder();
+	private final Map<Long, Long> versions = new ConcurrentHashMap<>();
+
+	private static class Entry {
+		private final String tokenKey;
+		private final long userId;
+		private final long instanceId;
+		private final boolean admin;
+		private final byte[] bytes;
+
+		private Entry(String tokenKey, User u, byte[] bytes) {
+			this.tokenKey = tokenKey;
+			this.userId = u.getId();
+			this.instanceId = u.getInstance().getId();
+			this.admin = u.hasRole(User.Role.ADMIN);
+			this.bytes = bytes;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		long maxBytes = env.getProperty("es.ucm.fdi.state-cache.max-bytes", Long.class, 64L << 20);
+		long ttl = env.getProperty("es.ucm.fdi.state-cache.ttl-seconds", Long.class, 600L);
+		cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((String k, Entry e) -> e.bytes.length)
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		log.info("State cache holds up to {} bytes, for {} seconds each", maxBytes, ttl);
+	}
+
+	private static String key(String tokenKey, String variant) {
+		return tokenKey + "/" + variant;
+	}
+
+	/**
+	 * @return the cached state for a token, or null if not cached
+	 */
+	public byte[] get(String tokenKey, String variant) {
+		Entry e = cache.getIfPresent(key(tokenKey, variant));
+		return e == null ? null : e.bytes;
+	}
+
+	/**
+	 * @return a stamp to pass to put(); must be taken before reading anything
+	 * that goes into the state.
+	 */
+	public long stamp() {
+		return evictions.get();
+	}
+
+	/**
+	 * Remembers a state, unless its instance has changed since it was stamped.
+	 */
+	public void put(Token t, String variant, long stamp, byte[] bytes) {
+		long instanceId = t.getUser().getInstance().getId();
+		if (isStale(instanceId, stamp)) {
+			rejected.increment();
+			return;
+		}
+		String key = key(t.getKey(), variant);
+		cache.put(key, new Entry(t.getKey(), t.getUser(), bytes));
+		// an eviction may have slipped in while we were adding
+		if (isStale(instanceId, stamp)) {
+			cache.invalidate(key);
+			rejected.increment();
+		}
+	}
+
+	private boolean isStale(long instanceId, long stamp) {
+		return lastEvicted.getOrDefault(instanceId, -1L) > stamp;
+	}
+
+	/**
+	 * Forgets all states for a token.
+	 */
+	public void invalidate(String tokenKey) {
+		cache.asMap().values().removeIf(e -> e.tokenKey.equals(tokenKey));
+	}
+
+	/**
+	 * Forgets all states for an instance, and its version; right away, and again
+	 * once the current transaction commits. Otherwise, a concurrent /list could
+	 * re-cache a state (or a version) read before the commit.
+	 */
+	public void invalidateInstance(long instanceId) {
+		Runnable r = () -> {
+			evict(instanceId, e -> true);
+			versions.remove(instanceId);
+		};
+		r.run();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCommit() {
+							r.run();
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return the latest version of an instance, as far as we know; or null if unknown
+	 */
+	public Long getVersion(long instanceId) {
+		return versions.get(instanceId);
+	}
+
+	/**
+	 * Notes that an instance has (at least) a given version.
+	 */
+	public void noteVersion(long instanceId, long version) {
+		versions.merge(instanceId, version, Math::max);
+	}
+
+	/**
+	 * Evicts the states of everybody that could see a set of changes, once these
+	 * are committed. Viewers are figured out just before committing, while
+	 * everything is still loaded.
+	 */
+	public void watch(ChangeSet changes) {
+		long instanceId = changes.getInstance().getId();
+		if ( ! TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(
+				new TransactionSynchronizationAdapter() {
+					private Audience audience;
+
+					@Override
+					public void beforeCommit(boolean readOnly) {
+						audience = changes.isEmpty() ? null : changes.getAudience();
+					}
+
+					@Override
+					public void afterCommit() {
+						if ( ! changes.isEmpty()) {
+							noteVersion(instanceId, changes.getLatestVersion());
+						}
+						if (audience != null && ! audience.isEmpty()) {
+							evict(instanceId, e ->
+									audience.includes(e.userId, e.admin));
+						}
+					}
+				});
+	}
+
+	private void evict(long instanceId, Predicate<Entry> p) {
+		lastEvicted.put(instanceId, evictions.incrementAndGet());
+		cache.asMap().values().removeIf(e -> e.instanceId == instanceId && p.test(e));
+	}
+
+	public Map<String, Object> stats() {
+		CacheStats s = cache.stats();
+		long bytes = 0;
+		for (Entry e : cache.asMap().values()) {
+			bytes += e.bytes.length;
+		}
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("size", cache.size());
+		result.put("bytes", bytes);
+		result.put("hits", s.hitCount());
+		result.put("misses", s.missCount());
+		result.put("hitRate", s.hitRate());
+		result.put("evictions", s.evictionCount());
+		result.put("rejected", rejected.sum());
+		return result;
+	}
+}
@@ -0,0 +1,70 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.GlobalState;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * ETags for GlobalState responses.
+ *
+ * A GlobalState depends only on who asks for it (the token), the version of the
+ * instance, and what was asked for (the since and messages parameters, and the
+ * encoding; see Encodings); every change to an instance increases its version. Tags can therefore be checked
+ * without building the state, or even looking at the database.
+ *
+ * Adds tags to all responses that return a GlobalState; /list adds its own.
+ * Since mutations may return deltas even if not asked for one (see the "return"
+ * parameter), these are tagged with the version that the state is relative to.
+ */
+@ControllerAdvice
+public class StateETags implements ResponseBodyAdvice<Object> {
+
+	public static String tag(long tokenId, long version, String since, String messages,
+			Encodings.Encoding encoding) {
+		return "\"" + tokenId + "-" + version + "-" + since + "-" + messages
+				+ "-" + encoding.name().toLowerCase() + "\"";
+	}
+
+	/**
+	 * @param ifNoneMatch as sent by a client; may list several tags
+	 * @return true if the tag is among them
+	 */
+	public static boolean matches(String ifNoneMatch, String tag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String t : ifNoneMatch.split(",")) {
+			t = t.trim();
+			if (t.equals("*") || t.equals(tag) || t.equals("W/" + tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean supports(MethodParameter returnType, Class converterType) {
+		// either a GlobalState, or something that may turn out to be one
+		return returnType.getParameterType().isAssignableFrom(GlobalState.class);
+	}
+
+	@Override
+	public Object beforeBodyWrite(Object body, MethodParameter returnType,
+			MediaType selectedContentType, Class selectedConverterType,
+			ServerHttpRequest request, ServerHttpResponse response) {
+		if (body instanceof GlobalState && request instanceof ServletServerHttpRequest) {
+			GlobalState state = (GlobalState) body;
+			ServletServerHttpRequest r = (ServletServerHttpRequest) request;
+			response.getHeaders().setETag(tag(state.getToken().getId(), state.getVersion(),
+					state.getSince() < 0 ? null : String.valueOf(state.getSince()),
+					r.getServletRequest().getParameter("messages"),
+					Encodings.Encoding.of(selectedContentType)));
+		}
+		return body;
+	}
+}
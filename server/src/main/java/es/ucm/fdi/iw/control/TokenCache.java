@@ -0,0 +1,196 @@
+package es.ucm.fdi.iw.control;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import es.ucm.fdi.iw.model.Token;
+import es.ucm.fdi.iw.model.User;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Keeps recently-used tokens in memory, so that resolving a token
+ * does not require a trip to the database.
+ *
+ * Entries expire after a configurable time-to-live, and the least-recently
+ * used ones are evicted when the cache grows too large.
+ */
+@Component
+public class TokenCache {
+
+	private static final Logger log = LogManager.getLogger(TokenCache.class);
+
+	@Autowired
+	private Environment env;
+
+	private Cache<String, Entry> cache;
+
+	/**
+	 * What we remember about a token: enough to rebuild it without querying for it.
+	 */
+	public static class Entry {
+		private final long tokenId;
+		private final long userId;
+		private final long instanceId;
+		private final LocalDateTime issued;
+		private volatile LocalDateTime lastUsed;
+
+		public Entry(long tokenId, long userId, long instanceId,
+					 LocalDateTime issued, LocalDateTime lastUsed) {
+			this.tokenId = tokenId;
+			this.userId = userId;
+			this.instanceId = instanceId;
+			this.issued = issued;
+			this.lastUsed = lastUsed;
+		}
+
+		public long getTokenId() {
+			return tokenId;
+		}
+
+		public long getUserId() {
+			return userId;
+		}
+
+		public long getInstanceId() {
+			return instanceId;
+		}
+
+		public LocalDateTime getIssued() {
+			return issued;
+		}
+
+		public LocalDateTime getLastUsed() {
+			return lastUsed;
+		}
+
+		public void setLastUsed(LocalDateTime lastUsed) {
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		long maxSize = env.getProperty("es.ucm.fdi.token-cache.max-size", Long.class, 10000L);
+		long ttl = env.getProperty("es.ucm.fdi.token-cache.ttl-seconds", Long.class, 600L);
+		cache = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		log.info("Token cache holds up to {} tokens, for {} seconds each", maxSize, ttl);
+	}
+
+	/**
+	 * Looks up a token.
+	 * @return the cached entry, or null if not cached
+	 */
+	public Entry get(String key) {
+		return cache.getIfPresent(key);
+	}
+
+	/**
+	 * Remembers a (persisted) token.
+	 */
+	public void put(Token t) {
+		User u = t.getUser();
+		cache.put(t.getKey(), new Entry(t.getId(), u.getId(), u.getInstance().getId(),
+				t.getIssued(), t.getLastUsed()));
+	}
+
+	/**
+	 * Rebuilds a cached token. The returned token is not managed; its user is,
+	 * and is looked up by primary key (which callers would need anyway).
+	 * @return the token, or null if its user no longer exists
+	 */
+	public Token toToken(String key, Entry e, EntityManager entityManager) {
+		User u = entityManager.find(User.class, e.getUserId());
+		if (u == null) {
+			cache.invalidate(key);
+			return null;
+		}
+		Token t = new Token();
+		t.setId(e.getTokenId());
+		t.setKey(key);
+		t.setUser(u);
+		t.setIssued(e.getIssued());
+		t.setLastUsed(e.getLastUsed());
+		return t;
+	}
+
+	/**
+	 * Records a use of a cached token.
+	 */
+	public void touch(String key, LocalDateTime now) {
+		Entry e = cache.getIfPresent(key);
+		if (e != null) {
+			e.setLastUsed(now);
+		}
+	}
+
+	public void invalidate(String key) {
+		twice(() -> cache.invalidate(key));
+	}
+
+	/**
+	 * Forgets all tokens for a user, say because it has been removed.
+	 */
+	public void invalidateUser(long userId) {
+		invalidateIf(e -> e.getUserId() == userId);
+	}
+
+	/**
+	 * Forgets all tokens for users of an instance.
+	 */
+	public void invalidateInstance(long instanceId) {
+		invalidateIf(e -> e.getInstanceId() == instanceId);
+	}
+
+	/**
+	 * Forgets all tokens that match a condition, such as having expired.
+	 */
+	public void invalidateIf(Predicate<Entry> p) {
+		twice(() -> cache.asMap().values().removeIf(p));
+	}
+
+	/**
+	 * Runs an invalidation right away, and again once the current transaction
+	 * commits; otherwise, a concurrent request could re-cache a token that
+	 * is about to be deleted.
+	 */
+	private static void twice(Runnable r) {
+		r.run();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(
+					new TransactionSynchronizationAdapter() {
+						@Override
+						public void afterCommit() {
+							r.run();
+						}
+					});
+		}
+	}
+
+	public Map<String, Object> stats() {
+		CacheStats s = cache.stats();
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("size", cache.size());
+		result.put("hits", s.hitCount());
+		result.put("misses", s.missCount());
+		result.put("evictions", s.evictionCount());
+		return result;
+	}
+}
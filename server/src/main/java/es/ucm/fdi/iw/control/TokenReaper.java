@@ -0,0 +1,116 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.model.Token;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Decides when tokens expire, and periodically deletes expired tokens.
+ *
+ * A token expires when it has not been used for a while (idle expiry), or when
+ * it is simply too old (absolute expiry). Each use slides the idle window; to
+ * avoid writing on every request, last-use times are only stored if they have
+ * changed by more than a few seconds.
+ */
+@Component
+public class TokenReaper {
+
+	private static final Logger log = LogManager.getLogger(TokenReaper.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private TokenCache tokenCache;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	private Duration maxIdle;
+	private Duration maxAge;
+	private Duration touchEvery;
+	private int batchSize;
+
+	@PostConstruct
+	public void init() {
+		maxIdle = Duration.ofMinutes(
+				env.getProperty("es.ucm.fdi.token.max-idle-minutes", Long.class, 120L));
+		maxAge = Duration.ofHours(
+				env.getProperty("es.ucm.fdi.token.max-age-hours", Long.class, 24L));
+		touchEvery = Duration.ofSeconds(
+				env.getProperty("es.ucm.fdi.token.touch-seconds", Long.class, 60L));
+		batchSize = env.getProperty("es.ucm.fdi.token.reap-batch-size", Integer.class, 1000);
+		log.info("Tokens expire after {} idle, or {} after being issued", maxIdle, maxAge);
+	}
+
+	public boolean isExpired(LocalDateTime issued, LocalDateTime lastUsed, LocalDateTime now) {
+		return issued == null || lastUsed == null
+				|| issued.plus(maxAge).isBefore(now)
+				|| lastUsed.plus(maxIdle).isBefore(now);
+	}
+
+	public boolean isExpired(Token t, LocalDateTime now) {
+		return isExpired(t.getIssued(), t.getLastUsed(), now);
+	}
+
+	/**
+	 * @return true if the token's last-use time is old enough to be worth updating
+	 */
+	public boolean needsTouch(Token t, LocalDateTime now) {
+		return needsTouch(t.getLastUsed(), now);
+	}
+
+	public boolean needsTouch(LocalDateTime lastUsed, LocalDateTime now) {
+		return lastUsed.plus(touchEvery).isBefore(now);
+	}
+
+	/**
+	 * Deletes expired tokens, a batch at a time, each in its own transaction.
+	 */
+	@Scheduled(fixedDelayString = "${es.ucm.fdi.token.reap-every-ms:60000}")
+	public void reap() {
+		LocalDateTime now = LocalDateTime.now();
+		tokenCache.invalidateIf(e -> isExpired(e.getIssued(), e.getLastUsed(), now));
+
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		int total = 0;
+		int deleted;
+		do {
+			deleted = tt.execute(status -> {
+				List<Long> ids = entityManager.createQuery(
+						"select id from Token where issued is null or lastUsed is null "
+								+ "or issued < :oldest or lastUsed < :idlest", Long.class)
+						.setParameter("oldest", now.minus(maxAge))
+						.setParameter("idlest", now.minus(maxIdle))
+						.setMaxResults(batchSize)
+						.getResultList();
+				if (ids.isEmpty()) {
+					return 0;
+				}
+				return entityManager.createQuery("delete from Token where id in :ids")
+						.setParameter("ids", ids)
+						.executeUpdate();
+			});
+			total += deleted;
+		} while (deleted == batchSize);
+
+		if (total > 0) {
+			log.info("Reaped {} expired tokens", total);
+		}
+	}
+}
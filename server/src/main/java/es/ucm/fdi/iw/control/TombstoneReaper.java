@@ -0,0 +1,52 @@
+package es.ucm.fdi.iw.control;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Periodically forgets old removals.
+ *
+ * Each instance keeps tombstones for its last few versions only; its horizon
+ * is then moved forward, so that clients that are further behind get
+ * everything instead of an incomplete list of changes.
+ */
+@Component
+public class TombstoneReaper {
+
+	private static final Logger log = LogManager.getLogger(TombstoneReaper.class);
+
+	@Autowired
+	private EntityManager entityManager;
+
+	@Autowired
+	private Environment env;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Scheduled(fixedDelayString = "${es.ucm.fdi.sync.prune-every-ms:600000}")
+	public void prune() {
+		long keep = env.getProperty("es.ucm.fdi.sync.keep-versions", Long.class, 10000L);
+		int pruned = new TransactionTemplate(transactionManager).execute(status -> {
+			entityManager.createQuery(
+					"update Instance set horizon = version - :keep where version - :keep > horizon")
+					.setParameter("keep", keep)
+					.executeUpdate();
+			return entityManager.createQuery(
+					"delete from Tombstone t where t.version <= "
+							+ "(select i.horizon from Instance i where i.id = t.instance.id)")
+					.executeUpdate();
+		});
+		if (pruned > 0) {
+			log.info("Pruned {} tombstones", pruned);
+		}
+	}
+}
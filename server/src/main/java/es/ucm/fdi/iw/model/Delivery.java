@@ -0,0 +1,94 @@
+package es.ucm.fdi.iw.model;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * A message sent to a class mailbox, and not yet delivered to the guardians
+ * of that class' students. Created along with the message, and removed once
+ * every guardian has their copy; see DeliveryWorker.
+ */
+@Entity
+@Table(indexes = @Index(name = "delivery_due_idx", columnList = "due"))
+public class Delivery {
+	private long id;
+	private Message message;
+	private User mailbox;
+	private LocalDateTime created;
+	private LocalDateTime due;
+	private int attempts;
+	private String error;
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "delivery_seq")
+	@SequenceGenerator(name = "delivery_seq", sequenceName = "delivery_seq", allocationSize = 50)
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	@ManyToOne(targetEntity = Message.class, optional = false)
+	public Message getMessage() {
+		return message;
+	}
+
+	public void setMessage(Message message) {
+		this.message = message;
+	}
+
+	@ManyToOne(targetEntity = User.class, optional = false)
+	public User getMailbox() {
+		return mailbox;
+	}
+
+	public void setMailbox(User mailbox) {
+		this.mailbox = mailbox;
+	}
+
+	@Column(nullable = false)
+	public LocalDateTime getCreated() {
+		return created;
+	}
+
+	public void setCreated(LocalDateTime created) {
+		this.created = created;
+	}
+
+	/**
+	 * @return when to try (again) to deliver this
+	 */
+	@Column(nullable = false)
+	public LocalDateTime getDue() {
+		return due;
+	}
+
+	public void setDue(LocalDateTime due) {
+		this.due = due;
+	}
+
+	/**
+	 * @return how many times delivery has failed
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @return why delivery last failed, if it did
+	 */
+	@Column(length = 1024)
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+}
@@ -1,18 +1,21 @@
 package es.ucm.fdi.iw.model;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.persistence.*;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 /**
  * A group of students, with one or more teachers.
@@ -20,20 +23,28 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
  * 
  * @author mfreire
  */
+@JsonPropertyOrder({"id", "cid", "teachers", "students"})
 @Entity
-public class EClass extends Referenceable {
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "classes")
+public class EClass extends Referenceable implements Versioned {
 	private long id;
     @JsonView(Views.Public.class)
 	private String cid;
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
-	private List<User> teachers = new ArrayList<>();
+	private Set<User> teachers = new LinkedHashSet<>();
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
-	private List<Student> students = new ArrayList<>();
+	private Set<Student> students = new LinkedHashSet<>();
 	@JsonIgnore
 	private Instance instance;
+	@JsonIgnore
+	private long changed;
+	@JsonIgnore
+	private long revision;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "eclass_seq")
+	@SequenceGenerator(name = "eclass_seq", sequenceName = "eclass_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -42,6 +53,29 @@ public class EClass extends Referenceable {
 		this.id = id;
 	}
 
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getChanged() {
+		return changed;
+	}
+
+	public void setChanged(long changed) {
+		this.changed = changed;
+	}
+
+	/**
+	 * Incremented by Hibernate on every update, for optimistic locking
+	 * (see control.ConflictRetrier). Unrelated to getChanged(), used for sync.
+	 */
+	@Version
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
 	@ManyToOne(targetEntity = Instance.class)
 	public Instance getInstance() {
 		return instance;
@@ -60,21 +94,33 @@ public class EClass extends Referenceable {
 		this.cid = cid;
 	}
 
+	/**
+	 * Links to teachers are kept here; User.getClasses() is their other side.
+	 * Sets, rather than lists, so that single links are added and removed as
+	 * single rows (lists without an order are rewritten whole on any removal).
+	 * The join table is named as it was when both sides had their own.
+	 */
 	@ManyToMany(targetEntity = User.class)
-	public List<User> getTeachers() {
+	@JoinTable(name = "eclass_teachers", joinColumns = @JoinColumn(name = "eclass_id"),
+			inverseJoinColumns = @JoinColumn(name = "teachers_id"))
+	@OrderBy
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "classes.teachers")
+	public Set<User> getTeachers() {
 		return teachers;
 	}
 
-	public void setTeachers(List<User> teachers) {
+	public void setTeachers(Set<User> teachers) {
 		this.teachers = teachers;
 	}
 
-	@OneToMany(targetEntity = Student.class, cascade = CascadeType.ALL)
-	public List<Student> getStudents() {
+	@OneToMany(targetEntity = Student.class, mappedBy = "EClass", cascade = CascadeType.ALL)
+	@OrderBy
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "classes.students")
+	public Set<Student> getStudents() {
 		return students;
 	}
 
-	public void setStudents(List<Student> students) {
+	public void setStudents(Set<Student> students) {
 		this.students = students;
 	}
 
@@ -1,42 +1,34 @@
 package es.ucm.fdi.iw.model;
 
-import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.List;
 
 /**
  * Used to ferry global state from an Instance object into JSON.
+ * Can include either everything visible to a user, or only what has
+ * changed since a given version of the instance.
+ *
+ * Nothing is gathered until serialization time: GlobalStateWriter then walks
+ * the instance, writing whatever is visible straight into the output.
  */
+@JsonSerialize(using = GlobalStateWriter.class)
 public class GlobalState {
 
-    @JsonView(Views.Public.class)
-    private ArrayList<EClass> classes;
-    @JsonView(Views.Public.class)
-    private ArrayList<User> users;
-    @JsonView(Views.Public.class)
-    private ArrayList<Student> students;
-    @JsonView(Views.Public.class)
-    private ArrayList<UMessage> messages;
-    @JsonView(Views.Public.class)
-    private String token;
+    private final Token token;
+    private final long version;
+    private final long since;
+    private final List<Tombstone> removed;
+    private final List<UMessage> messages;
 
-    public GlobalState() {}
-
-    private static void addIfAbsent(User u, Collection<User> destination, Set<User> known) {
-        if (known.add(u)) {
-            destination.add(u);
-        }
-    }
-
-    private static void addIfAbsent(Collection<User> source, Collection<User> destination, Set<User> known) {
-        for (User u : source) {
-            addIfAbsent(u, destination, known);
-        }
+    /**
+     * Creates a personalized view of an instance for a user, including everything
+     * visible to that user.
+     *
+     * @param token identifiying both instance and user to look as
+     */
+    public GlobalState(Token token) {
+        this(token, token.getUser().getInstance().getVersion(), -1, null);
     }
 
     /**
@@ -46,56 +38,51 @@ public class GlobalState {
      * Guardians cannot see students that they are not guardians for.
      *
      * @param token identifiying both instance and user to look as
+     * @param version of the instance that is being viewed
+     * @param since version already known to the viewer; only things changed after it
+     *              will be included. Use -1 to include everything.
+     * @param removed things removed since that version; or null if including everything
      */
-    public GlobalState(Token token) {
-        // later ease of reference
-        User u = token.getUser();
-        Instance i = u.getInstance();
+    public GlobalState(Token token, long version, long since, List<Tombstone> removed) {
+        this(token, version, since, removed, null);
+    }
 
-        // everybody can see their own messages
-        messages = new ArrayList<>(u.getSent());
-        messages.addAll(u.getReceived());
+    /**
+     * As above, but with control over which messages to include.
+     *
+     * @param messages to include instead of all the user's messages; for example,
+     *                 only the latest ones, or also those shared with a guardian's
+     *                 students' classes. If empty, none will be included.
+     */
+    public GlobalState(Token token, long version, long since, List<Tombstone> removed,
+                       List<UMessage> messages) {
+        this.token = token;
+        this.version = version;
+        this.since = since;
+        this.removed = removed;
+        this.messages = messages;
+    }
+
+    public Token getToken() {
+        return token;
+    }
 
-        // fill in token field
-        this.token = token.getKey();
+    public long getVersion() {
+        return version;
+    }
 
-        // fill in visible classes, users, students
-        classes = new ArrayList<>();
-        users = new ArrayList<>();
-        students = new ArrayList<>();
-        if (u.hasRole(User.Role.ADMIN)) {
-            // see everybody
-            classes.addAll(i.getClasses());
-            users.addAll(i.getUsers());
-            students.addAll(i.getStudents());
-        } else {
-            HashSet<User> uniqueUsers = new HashSet<>();
-            if (u.hasRole(User.Role.TEACHER)) {
-                // see own classes & students -- and their guardians
-                HashSet<Student> uniqueStudents = new HashSet<>();
-                for (EClass c : i.getClasses()) {
-                    if (c.getTeachers().contains(u)) {
-                        classes.add(c);
-                        addIfAbsent(c.getTeachers(), users, uniqueUsers);
-                        for (Student s : c.getStudents()) {
-                            if (uniqueStudents.add(s)) {
-                                students.add(s);
-                                addIfAbsent(s.getGuardians(), users, uniqueUsers);
-                            }
-                        }
-                    }
-                }
-            } else if (u.hasRole(User.Role.GUARDIAN)) {
-                // see guarded, their teachers -- and nobody else
-                for (Student s: i.getStudents()) {
-                    students.add(s);
-                    if (s.getGuardians().contains(u)) {
-                        addIfAbsent(s.getEClass().getTeachers(), users, uniqueUsers);
-                    }
-                }
-            }
-        }
-        // filter out class users: those are implicit
-        users.removeIf(o -> o.hasRole(User.Role.CLASS));
+    public long getSince() {
+        return since;
+    }
+
+    public List<Tombstone> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return messages to include, or null to include all the user's messages
+     */
+    public List<UMessage> getMessages() {
+        return messages;
     }
 }
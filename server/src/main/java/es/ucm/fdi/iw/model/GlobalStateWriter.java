@@ -0,0 +1,213 @@
+package es.ucm.fdi.iw.model;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes a GlobalState as JSON, streaming each visible entity straight to the
+ * output instead of first gathering them into lists.
+ *
+ * The output is exactly what Jackson would write for the lists that
+ * GlobalState used to hold, including its handling of views: properties without
+ * a @JsonView (such as EClass ids) are only written when no view is active, or
+ * when the mapper includes un-viewed properties by default.
+ *
+ * Only admins walk the whole instance. Teachers and guardians start from their
+ * own classes and students, which are kept up to date alongside the classes'
+ * teachers and the students' guardians; so their states cost time proportional
+ * to what they can see, regardless of the size of the instance.
+ */
+public class GlobalStateWriter extends JsonSerializer<GlobalState> {
+
+    /**
+     * Per-call state; serializers themselves are shared
+     */
+    private static class Writer {
+        private final JsonGenerator g;
+        private final User u;
+        private final Instance i;
+        private final long since;
+        private final boolean allProperties;
+
+        private Writer(JsonGenerator g, GlobalState state, boolean allProperties) {
+            this.g = g;
+            this.u = state.getToken().getUser();
+            this.i = u.getInstance();
+            this.since = state.getSince();
+            this.allProperties = allProperties;
+        }
+
+        private void write(GlobalState state) throws IOException {
+            g.writeStartObject();
+
+            g.writeArrayFieldStart("classes");
+            if (u.hasRole(User.Role.ADMIN)) {
+                for (EClass c : i.getClasses()) writeClass(c);
+            } else if (u.hasRole(User.Role.TEACHER)) {
+                for (EClass c : u.getClasses()) writeClass(c);
+            }
+            g.writeEndArray();
+
+            g.writeArrayFieldStart("users");
+            if (u.hasRole(User.Role.ADMIN)) {
+                for (User o : i.getUsers()) if ( ! o.hasRole(User.Role.CLASS)) writeUser(o);
+            } else if (u.hasRole(User.Role.TEACHER)) {
+                // own classes' teachers, and their students' guardians
+                Set<User> seen = new HashSet<>();
+                Set<Student> seenStudents = new HashSet<>();
+                for (EClass c : u.getClasses()) {
+                    writeUsers(c.getTeachers(), seen);
+                    for (Student s : c.getStudents()) {
+                        if (seenStudents.add(s)) writeUsers(s.getGuardians(), seen);
+                    }
+                }
+            } else if (u.hasRole(User.Role.GUARDIAN)) {
+                // teachers of guarded students
+                Set<User> seen = new HashSet<>();
+                for (Student s : u.getStudents()) {
+                    if (s.getEClass() != null) writeUsers(s.getEClass().getTeachers(), seen);
+                }
+            }
+            g.writeEndArray();
+
+            g.writeArrayFieldStart("students");
+            if (u.hasRole(User.Role.ADMIN)) {
+                for (Student s : i.getStudents()) writeStudent(s);
+            } else if (u.hasRole(User.Role.TEACHER)) {
+                Set<Student> seen = new HashSet<>();
+                for (EClass c : u.getClasses()) {
+                    for (Student s : c.getStudents()) if (seen.add(s)) writeStudent(s);
+                }
+            } else if (u.hasRole(User.Role.GUARDIAN)) {
+                for (Student s : u.getStudents()) writeStudent(s);
+            }
+            g.writeEndArray();
+
+            // everybody can see their own messages; maybe only some of them, or
+            // (for guardians) also those shared with their students' classes
+            g.writeArrayFieldStart("messages");
+            if (state.getMessages() == null) {
+                for (UMessage m : u.getSent()) writeMessage(m);
+                for (UMessage m : u.getReceived()) writeMessage(m);
+            } else {
+                for (UMessage m : state.getMessages()) writeMessage(m);
+            }
+            g.writeEndArray();
+
+            g.writeStringField("token", state.getToken().getKey());
+            g.writeNumberField("version", state.getVersion());
+
+            if (state.getRemoved() != null) {
+                // in alphabetical order, as if from a TreeMap
+                g.writeObjectFieldStart("removed");
+                for (String kind : new String[] {
+                        Tombstone.CLASSES, Tombstone.MESSAGES, Tombstone.STUDENTS, Tombstone.USERS}) {
+                    g.writeArrayFieldStart(kind);
+                    for (Tombstone t : state.getRemoved()) {
+                        if (t.getKind().equals(kind)) g.writeString(t.getRef());
+                    }
+                    g.writeEndArray();
+                }
+                g.writeEndObject();
+            }
+
+            g.writeEndObject();
+        }
+
+        private void writeUsers(Collection<User> us, Set<User> seen) throws IOException {
+            for (User o : us) {
+                if (seen.add(o) && ! o.hasRole(User.Role.CLASS)) writeUser(o);
+            }
+        }
+
+        private void writeRefs(Collection<? extends Referenceable> rs) throws IOException {
+            g.writeStartArray();
+            for (Referenceable r : rs) g.writeString(r.getRef());
+            g.writeEndArray();
+        }
+
+        private void writeSplit(String fieldName, String s) throws IOException {
+            g.writeFieldName(fieldName);
+            if (s == null) {
+                g.writeNull();
+            } else {
+                g.writeStartArray();
+                for (String part : s.split(",")) g.writeString(part);
+                g.writeEndArray();
+            }
+        }
+
+        private void writeClass(EClass c) throws IOException {
+            if (c.getChanged() <= since) return;
+            g.writeStartObject();
+            if (allProperties) {
+                g.writeNumberField("id", c.getId());
+            }
+            g.writeStringField("cid", c.getCid());
+            if (allProperties) {
+                g.writeFieldName("teachers");
+                writeRefs(c.getTeachers());
+                g.writeFieldName("students");
+                writeRefs(c.getStudents());
+            }
+            g.writeEndObject();
+        }
+
+        private void writeUser(User o) throws IOException {
+            if (o.getChanged() <= since) return;
+            g.writeStartObject();
+            g.writeFieldName("students");
+            writeRefs(o.getStudents());
+            g.writeStringField("uid", o.getUid());
+            g.writeFieldName("classes");
+            writeRefs(o.getClasses());
+            g.writeStringField("type", o.getType());
+            writeSplit("tels", o.getTels());
+            g.writeStringField("first_name", o.getFirstName());
+            g.writeStringField("last_name", o.getLastName());
+            g.writeEndObject();
+        }
+
+        private void writeStudent(Student s) throws IOException {
+            if (s.getChanged() <= since) return;
+            g.writeStartObject();
+            g.writeStringField("sid", s.getSid());
+            g.writeStringField("firstName", s.getFirstName());
+            g.writeStringField("lastName", s.getLastName());
+            g.writeFieldName("guardians");
+            writeRefs(s.getGuardians());
+            g.writeStringField("cid", s.getCid());
+            g.writeEndObject();
+        }
+
+        private void writeMessage(UMessage m) throws IOException {
+            if (m.getChanged() <= since || m.isHidden()) return;
+            g.writeStartObject();
+            writeSplit("labels", m.getLabels());
+            User from = m.getFrom();
+            g.writeStringField("from", from == null ? null : from.getRef());
+            g.writeStringField("date", m.getDate());
+            g.writeFieldName("to");
+            writeRefs(m.getTo());
+            g.writeStringField("msgid", m.getMsgid());
+            g.writeStringField("subject", m.getSubject());
+            g.writeStringField("body", m.getBody());
+            g.writeEndObject();
+        }
+    }
+
+    @Override
+    public void serialize(GlobalState state, JsonGenerator g, SerializerProvider provider)
+            throws IOException {
+        boolean allProperties = provider.getActiveView() == null
+                || provider.isEnabled(MapperFeature.DEFAULT_VIEW_INCLUSION);
+        new Writer(g, state, allProperties).write(state);
+    }
+}
@@ -1,6 +1,8 @@
 package es.ucm.fdi.iw.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreType;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.util.ArrayList;
@@ -8,20 +10,39 @@ import java.util.List;
 
 /**
  * A separate instance of the application, as identified through an API key.
+ *
+ * Kept in the second-level cache, like its classes, students and users (see
+ * AppConfig.entityCache). Its own lists are not cached: they are not updated
+ * when things are added to the instance, and would go stale.
  * 
  * @author mfreire
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "instances")
 @JsonIgnoreType
 public class Instance {
+
+	/**
+	 * How messages sent to a class reach the guardians of its students
+	 */
+	public enum ClassDelivery {
+		COPY,		// each guardian gets their own copy; see DeliveryWorker
+		SHARED		// a single copy, owned by the class mailbox, is read by every guardian
+	}
+
 	private long id;
+	private long version;
+	private long horizon;
+	private ClassDelivery classDelivery = ClassDelivery.COPY;
 	private List<EClass> classes = new ArrayList<>();
 	private List<User> users= new ArrayList<>();
 	private List<Student> students = new ArrayList<>();
 	private List<Message> messages = new ArrayList<>();
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "instance_seq")
+	@SequenceGenerator(name = "instance_seq", sequenceName = "instance_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -30,6 +51,46 @@ public class Instance {
 		this.id = id;
 	}
 
+	/**
+	 * @return a number that increases every time anything in this instance changes
+	 */
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the oldest version for which changes can still be reported; clients
+	 * with older versions need a full copy of everything, because removals
+	 * from before this version have been forgotten.
+	 */
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getHorizon() {
+		return horizon;
+	}
+
+	public void setHorizon(long horizon) {
+		this.horizon = horizon;
+	}
+
+	/**
+	 * @return how messages sent to classes from now on will be delivered;
+	 * messages already sent stay as they were
+	 */
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, columnDefinition = "varchar(16) default 'COPY'")
+	public ClassDelivery getClassDelivery() {
+		return classDelivery;
+	}
+
+	public void setClassDelivery(ClassDelivery classDelivery) {
+		this.classDelivery = classDelivery;
+	}
+
 	@OneToMany(targetEntity = EClass.class)
 	@JoinColumn(name = "instance_id")
 	public List<EClass> getClasses() {
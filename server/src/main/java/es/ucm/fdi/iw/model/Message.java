@@ -6,8 +6,13 @@ import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Much like an e-mail, but without attachments.
@@ -15,20 +20,32 @@ import java.util.List;
  * @author mfreire
  */
 @Entity
+@Table(indexes = @Index(name = "message_date_idx", columnList = "date, id"))
 @JsonIgnoreType
 public class Message extends Referenceable {
+
+	/**
+	 * How dates are stored: always with milliseconds, and in the server's time
+	 * zone. So sorting them as strings also sorts them in time (which is how
+	 * messages are paged through; see ApiController.messagePage).
+	 */
+	public static final DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
 	private long id;
 	private String mid;
 	private Instance instance;
     private User from;
-	private List<User> to = new ArrayList<>();
+	private Set<User> to = new LinkedHashSet<>();
     private Message parent;
 	private String date;
     private String subject;
     private String body;
+	private long revision;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "message_seq")
+	@SequenceGenerator(name = "message_seq", sequenceName = "message_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -37,6 +54,20 @@ public class Message extends Referenceable {
 		this.id = id;
 	}
 
+	/**
+	 * Incremented by Hibernate on every update, for optimistic locking
+	 * (see control.ConflictRetrier).
+	 */
+	@Version
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
 	@Column(nullable = false, unique = true)
 	public String getMid() {
 		return mid;
@@ -65,11 +96,12 @@ public class Message extends Referenceable {
 	}
 
 	@ManyToMany(targetEntity = User.class)
-	public List<User> getTo() {
+	@OrderBy
+	public Set<User> getTo() {
 		return to;
 	}
 
-	public void setTo(List<User> to) {
+	public void setTo(Set<User> to) {
 		this.to = to;
 	}
 
@@ -98,6 +130,9 @@ public class Message extends Referenceable {
 		this.body = body;
 	}
 
+	/**
+	 * @return when this was sent, as per DATE_FORMAT
+	 */
 	public String getDate() {
 		return date;
 	}
@@ -106,6 +141,19 @@ public class Message extends Referenceable {
 		this.date = date;
 	}
 
+	/**
+	 * @param date an ISO date-time; with an offset or zone, or in the server's time zone
+	 * @return that same time, in the server's time zone
+	 * @throws java.time.format.DateTimeParseException if not an ISO date-time
+	 */
+	public static LocalDateTime parseDate(String date) {
+		TemporalAccessor t = DateTimeFormatter.ISO_DATE_TIME.parseBest(
+				date, ZonedDateTime::from, LocalDateTime::from);
+		return t instanceof ZonedDateTime ?
+				((ZonedDateTime) t).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime() :
+				(LocalDateTime) t;
+	}
+
 	@Override
 	@Transient
 	@JsonIgnore
@@ -7,7 +7,7 @@ import com.fasterxml.jackson.databind.SerializerProvider;
 
 import javax.persistence.Transient;
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
 
 public abstract class Referenceable {
     @Transient
@@ -21,9 +21,9 @@ public abstract class Referenceable {
         }
     }
 
-    public static class ListSerializer<T extends Referenceable> extends JsonSerializer<List<T>> {
+    public static class ListSerializer<T extends Referenceable> extends JsonSerializer<Collection<T>> {
         @Override
-        public void serialize(List<T> rs, JsonGenerator g, SerializerProvider serializerProvider)
+        public void serialize(Collection<T> rs, JsonGenerator g, SerializerProvider serializerProvider)
                 throws IOException, JsonProcessingException {
             g.writeStartArray();
             for (Referenceable r : rs) g.writeObject(r.getRef());
@@ -1,18 +1,24 @@
 package es.ucm.fdi.iw.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * A student.
  */
+@JsonPropertyOrder({"sid", "firstName", "lastName", "guardians", "cid"})
 @Entity
-public class Student extends Referenceable {
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "students")
+public class Student extends Referenceable implements Versioned {
     @JsonIgnore
 	private long id;
 	@JsonIgnore
@@ -25,12 +31,17 @@ public class Student extends Referenceable {
 	private String lastName;
 	@JsonIgnore
 	private EClass eClass;
+	@JsonIgnore
+	private long changed;
+	@JsonIgnore
+	private long revision;
 	@JsonView(Views.Public.class)
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
-	private List<User> guardians = new ArrayList<>();
+	private Set<User> guardians = new LinkedHashSet<>();
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "student_seq")
+	@SequenceGenerator(name = "student_seq", sequenceName = "student_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -39,6 +50,29 @@ public class Student extends Referenceable {
 		this.id = id;
 	}
 
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getChanged() {
+		return changed;
+	}
+
+	public void setChanged(long changed) {
+		this.changed = changed;
+	}
+
+	/**
+	 * Incremented by Hibernate on every update, for optimistic locking
+	 * (see control.ConflictRetrier). Unrelated to getChanged(), used for sync.
+	 */
+	@Version
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
 	@ManyToOne(targetEntity = Instance.class)
 	public Instance getInstance() {
 		return instance;
@@ -83,12 +117,19 @@ public class Student extends Referenceable {
 		this.eClass = eClass;
 	}
 
+	/**
+	 * Links to guardians are kept here; User.getStudents() is their other side.
+	 */
 	@ManyToMany(targetEntity = User.class)
-	public List<User> getGuardians() {
+	@JoinTable(name = "student_guardians", joinColumns = @JoinColumn(name = "student_id"),
+			inverseJoinColumns = @JoinColumn(name = "guardians_id"))
+	@OrderBy
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "students.guardians")
+	public Set<User> getGuardians() {
 		return guardians;
 	}
 
-	public void setGuardians(List<User> guardians) {
+	public void setGuardians(Set<User> guardians) {
 		this.guardians = guardians;
 	}
 
@@ -102,6 +143,6 @@ public class Student extends Referenceable {
 	@Transient
 	@JsonView(Views.Public.class)
 	public String getCid() {
-		return getEClass().getCid();
+		return getEClass() == null ? null : getEClass().getCid();
 	}
 }
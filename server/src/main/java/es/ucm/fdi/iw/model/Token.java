@@ -1,23 +1,32 @@
 package es.ucm.fdi.iw.model;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.time.LocalDateTime;
 
 /**
  * A login token to be included in all requests.
  * THIS IS ONLY DEMO CODE - IT IS NOT SPECIALLY SECURE. USE OAUTH FOR REAL STUFF
  *
+ * Tokens expire if unused for too long, or once they get too old; see TokenReaper.
+ *
  * @author mfreire
  */
 @Entity
+@Table(indexes = {
+		@Index(name = "token_key_idx", columnList = "key", unique = true),
+		@Index(name = "token_issued_idx", columnList = "issued"),
+		@Index(name = "token_last_used_idx", columnList = "lastUsed")
+})
 public class Token {
 	private long id;
 	private String key;
 	private User user;
+	private LocalDateTime issued;
+	private LocalDateTime lastUsed;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "token_seq")
+	@SequenceGenerator(name = "token_seq", sequenceName = "token_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -26,7 +35,7 @@ public class Token {
 		this.id = id;
 	}
 
-	@Column(unique=true)
+	@Column(nullable = false)
 	public String getKey() {
 		return key;
 	}
@@ -43,4 +52,20 @@ public class Token {
     public void setUser(User user) {
         this.user = user;
     }
+
+	public LocalDateTime getIssued() {
+		return issued;
+	}
+
+	public void setIssued(LocalDateTime issued) {
+		this.issued = issued;
+	}
+
+	public LocalDateTime getLastUsed() {
+		return lastUsed;
+	}
+
+	public void setLastUsed(LocalDateTime lastUsed) {
+		this.lastUsed = lastUsed;
+	}
 }
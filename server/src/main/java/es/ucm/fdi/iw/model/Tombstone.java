@@ -0,0 +1,90 @@
+package es.ucm.fdi.iw.model;
+
+import javax.persistence.*;
+
+/**
+ * Records that something was removed from an instance, so that clients that
+ * still have a copy can be told to drop it.
+ *
+ * Tombstones are only kept for a while; see Instance.getHorizon.
+ */
+@Entity
+@Table(indexes = @Index(name = "tombstone_version_idx", columnList = "instance_id, version"))
+public class Tombstone {
+	private long id;
+	private Instance instance;
+	private long version;
+	private String kind;
+	private String ref;
+	private String owner;
+
+	/**
+	 * What can be removed. Names match those of GlobalState fields
+	 */
+	public static final String CLASSES = "classes";
+	public static final String USERS = "users";
+	public static final String STUDENTS = "students";
+	public static final String MESSAGES = "messages";
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "tombstone_seq")
+	@SequenceGenerator(name = "tombstone_seq", sequenceName = "tombstone_seq", allocationSize = 50)
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	@ManyToOne(targetEntity = Instance.class)
+	public Instance getInstance() {
+		return instance;
+	}
+
+	public void setInstance(Instance instance) {
+		this.instance = instance;
+	}
+
+	/**
+	 * @return instance version that removed this
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	@Column(nullable = false)
+	public String getKind() {
+		return kind;
+	}
+
+	public void setKind(String kind) {
+		this.kind = kind;
+	}
+
+	@Column(nullable = false)
+	public String getRef() {
+		return ref;
+	}
+
+	public void setRef(String ref) {
+		this.ref = ref;
+	}
+
+	/**
+	 * @return uid of the only user that should hear about this removal
+	 * (used for messages, which are removed one mailbox at a time); or null
+	 * if everybody should.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+}
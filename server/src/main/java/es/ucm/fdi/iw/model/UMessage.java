@@ -1,6 +1,7 @@
 package es.ucm.fdi.iw.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -10,16 +11,25 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import javax.persistence.*;
 import java.io.IOException;
-import java.util.List;
+import java.util.Set;
 
 /**
- * A group of students, with one or more teachers.
- * EClass stands for ElementaryClass; "Class" by itself is a reserved word in Java
+ * A user's copy of a message, either sent or received by them, with their
+ * own labels. Copies are found via their user, direction and date, which
+ * are indexed together (see User.getSent() and getReceived()).
  * 
  * @author mfreire
  */
+@JsonPropertyOrder({"labels", "from", "date", "to", "msgid", "subject", "body"})
 @Entity
-public class UMessage {
+@Table(indexes = @Index(name = "umessage_user_idx", columnList = "user_id, direction, date"))
+public class UMessage implements Versioned {
+
+	public enum Direction {
+		SENT,
+		RECEIVED
+	}
+
 	@JsonIgnore
 	private long id;
 	@JsonIgnore
@@ -27,9 +37,19 @@ public class UMessage {
 	@JsonIgnore
 	private Message message;
 	private String labels;
+	@JsonIgnore
+	private long changed;
+	@JsonIgnore
+	private long revision;
+	@JsonIgnore
+	private boolean hidden;
+	@JsonIgnore
+	private Direction direction;
+	private String date;
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "umessage_seq")
+	@SequenceGenerator(name = "umessage_seq", sequenceName = "umessage_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -38,6 +58,29 @@ public class UMessage {
 		this.id = id;
 	}
 
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getChanged() {
+		return changed;
+	}
+
+	public void setChanged(long changed) {
+		this.changed = changed;
+	}
+
+	/**
+	 * Incremented by Hibernate on every update, for optimistic locking
+	 * (see control.ConflictRetrier). Unrelated to getChanged(), used for sync.
+	 */
+	@Version
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
 	@ManyToOne(targetEntity = User.class)
 	public User getUser() {
 		return user;
@@ -66,16 +109,58 @@ public class UMessage {
 		this.labels = labels;
 	}
 
-	@Transient
+	/**
+	 * @return if this copy hides its message from its user. Used by guardians
+	 * to remove messages shared with their students' classes, which they do
+	 * not own.
+	 */
+	@Column(nullable = false, columnDefinition = "boolean default false")
+	public boolean isHidden() {
+		return hidden;
+	}
+
+	public void setHidden(boolean hidden) {
+		this.hidden = hidden;
+	}
+
+	/**
+	 * @return whether this was sent or received by its user; old copies may
+	 * have none until migrated
+	 */
+	@Enumerated(EnumType.STRING)
+	@Column(length = 16)
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public void setDirection(Direction direction) {
+		this.direction = direction;
+	}
+
+	/**
+	 * @return that of its message; copied over when persisted, to sort a
+	 * user's copies without looking at their messages
+	 */
 	@JsonView(Views.Public.class)
-	public String getMsgid() {
-		return message.getMid();
+	public String getDate() {
+		return date;
+	}
+
+	public void setDate(String date) {
+		this.date = date;
+	}
+
+	@PrePersist
+	private void copyDate() {
+		if (date == null && message != null) {
+			date = message.getDate();
+		}
 	}
 
 	@Transient
 	@JsonView(Views.Public.class)
-	public String getDate() {
-		return message.getDate();
+	public String getMsgid() {
+		return message.getMid();
 	}
 
 	@Transient
@@ -88,7 +173,7 @@ public class UMessage {
 	@Transient
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
 	@JsonView(Views.Public.class)
-	public List<User> getTo() {
+	public Set<User> getTo() {
 		return message.getTo();
 	}
 
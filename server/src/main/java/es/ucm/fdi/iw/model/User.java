@@ -1,6 +1,7 @@
 package es.ucm.fdi.iw.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonView;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -8,13 +9,17 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.Hibernate;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Where;
 
 import javax.persistence.*;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * A user; can be an Admin, a Teacher, or a Guardian.
@@ -23,16 +28,51 @@ import java.util.List;
  *
  * @author mfreire
  */
+@JsonPropertyOrder({"students", "uid", "classes", "type", "tels", "first_name", "last_name"})
 @Entity
-public class User extends Referenceable {
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users")
+@Table(indexes = @Index(name = "user_role_idx", columnList = "instance_id, roleMask"))
+public class User extends Referenceable implements Versioned {
 
-	private static BCryptPasswordEncoder encoder = new BCryptPasswordEncoder();
+	private static final Logger log = LogManager.getLogger(User.class);
 
 	public enum Role {
 		ADMIN,
 		TEACHER,
 		GUARDIAN,
-		CLASS		// used to send to entire classes at once
+		CLASS;		// used to send to entire classes at once
+
+		/**
+		 * @return the bit used for this role in a role mask
+		 */
+		public int mask() {
+			return 1 << ordinal();
+		}
+
+		/**
+		 * Called whenever a user is loaded; so bad roles are skipped (and
+		 * logged), rather than making that user impossible to load.
+		 * @param roles separated by ','
+		 * @return a role mask with the bits for all those roles set
+		 */
+		public static int maskOf(String roles) {
+			int mask = 0;
+			if (roles != null) {
+				for (String r : roles.split(",")) {
+					String name = r.trim();
+					if (name.isEmpty()) {
+						continue;
+					}
+					try {
+						mask |= valueOf(name).mask();
+					} catch (IllegalArgumentException e) {
+						log.warn("Ignoring unknown role '{}' in '{}'", name, roles);
+					}
+				}
+			}
+			return mask;
+		}
 	}
 	@JsonIgnore
 	private long id;
@@ -40,13 +80,13 @@ public class User extends Referenceable {
 	private String password;
 	@JsonIgnore
 	private String roles; // split by ',' to separate roles
+	@JsonIgnore
+	private int roleMask; // same as roles, but as a bitmask; see Role.mask()
 	@JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
 	private byte enabled;
 
 	public boolean hasRole(Role role) {
-		String roleName = role.name();
-		return Arrays.stream(roles.split(","))
-				.anyMatch(r -> r.equals(roleName));
+		return (roleMask & role.mask()) != 0;
 	}
 	
 	// application-specific fields
@@ -55,7 +95,7 @@ public class User extends Referenceable {
 
 	@JsonView(Views.Public.class)
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
-	private List<Student> students = new ArrayList<>();
+	private Set<Student> students = new LinkedHashSet<>();
 
 	@JsonView(Views.Public.class)
 	private String uid;
@@ -67,20 +107,25 @@ public class User extends Referenceable {
 	private String lastName;
 	@JsonIgnore
 	private String telephones;
+	@JsonIgnore
+	private long changed;
+	@JsonIgnore
+	private long revision;
 
 	// for teachers, represents where the teacher teaches
 	// for guardians, what they are guarding
 	@JsonView(Views.Public.class)
 	@JsonSerialize(using = Referenceable.ListSerializer.class)
-	private List<EClass> classes = new ArrayList<>();
+	private Set<EClass> classes = new LinkedHashSet<>();
 
 	@JsonIgnore
-	private List<UMessage> sent = new ArrayList<>();
+	private Set<UMessage> sent = new LinkedHashSet<>();
 	@JsonIgnore
-	private List<UMessage> received = new ArrayList<>();
+	private Set<UMessage> received = new LinkedHashSet<>();
 	
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_seq")
+	@SequenceGenerator(name = "user_seq", sequenceName = "user_seq", allocationSize = 50)
 	public long getId() {
 		return id;
 	}
@@ -94,17 +139,33 @@ public class User extends Referenceable {
 		return password;
 	}
 
-	// call only with encoded passwords - NEVER STORE PLAINTEXT PASSWORDS
-	public void setPassword(String encodedPassword) {
-		this.password = encodedPassword;
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getChanged() {
+		return changed;
+	}
+
+	public void setChanged(long changed) {
+		this.changed = changed;
 	}
 
-	public boolean passwordMatches(String rawPassword) {
-		return encoder.matches(rawPassword, this.password);
+	/**
+	 * Incremented by Hibernate on every update, for optimistic locking
+	 * (see control.ConflictRetrier). Unrelated to getChanged(), used for sync.
+	 */
+	@Version
+	@Column(nullable = false, columnDefinition = "bigint default 0")
+	public long getRevision() {
+		return revision;
 	}
 
-	public static String encodePassword(String rawPassword) {
-		return encoder.encode(rawPassword);
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	// call only with encoded passwords - NEVER STORE PLAINTEXT PASSWORDS
+	// (see PasswordHasher for encoding & checking them)
+	public void setPassword(String encodedPassword) {
+		this.password = encodedPassword;
 	}
 
 	public String getRoles() {
@@ -113,6 +174,19 @@ public class User extends Referenceable {
 
 	public void setRoles(String roles) {
 		this.roles = roles;
+		this.roleMask = Role.maskOf(roles);
+	}
+
+	/**
+	 * Kept in sync with roles; stored so that queries can filter by role.
+	 */
+	@Column(nullable = false, columnDefinition = "integer default 0")
+	public int getRoleMask() {
+		return roleMask;
+	}
+
+	public void setRoleMask(int roleMask) {
+		this.roleMask = roleMask;
 	}
 
 	public byte getEnabled() {
@@ -141,21 +215,25 @@ public class User extends Referenceable {
 		this.uid = uid;
 	}
 
-	@ManyToMany(targetEntity = EClass.class)
-	public List<EClass> getClasses() {
+	@ManyToMany(targetEntity = EClass.class, mappedBy = "teachers")
+	@OrderBy
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users.classes")
+	public Set<EClass> getClasses() {
 		return classes;
 	}
 
-	public void setClasses(List<EClass> classes) {
+	public void setClasses(Set<EClass> classes) {
 		this.classes = classes;
 	}
 
-	@ManyToMany(targetEntity = Student.class)
-	public List<Student> getStudents() {
+	@ManyToMany(targetEntity = Student.class, mappedBy = "guardians")
+	@OrderBy
+	@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users.students")
+	public Set<Student> getStudents() {
 		return students;
 	}
 
-	public void setStudents(List<Student> students) {
+	public void setStudents(Set<Student> students) {
 		this.students = students;
 	}
 
@@ -183,24 +261,43 @@ public class User extends Referenceable {
 		this.lastName = lastName;
 	}
 
-	@ManyToMany(targetEntity = UMessage.class, cascade = CascadeType.ALL)
-	public List<UMessage> getSent() {
+	/**
+	 * Copies are owned by their UMessage.user; there is no join table.
+	 */
+	@OneToMany(targetEntity = UMessage.class, mappedBy = "user", cascade = CascadeType.ALL)
+	@Where(clause = "direction = 'SENT'")
+	@OrderBy
+	public Set<UMessage> getSent() {
 		return sent;
 	}
 
-	public void setSent(List<UMessage> sent) {
+	public void setSent(Set<UMessage> sent) {
 		this.sent = sent;
 	}
 
-	@ManyToMany(targetEntity = UMessage.class, cascade = CascadeType.ALL)
-	public List<UMessage> getReceived() {
+	@OneToMany(targetEntity = UMessage.class, mappedBy = "user", cascade = CascadeType.ALL)
+	@Where(clause = "direction = 'RECEIVED'")
+	@OrderBy
+	public Set<UMessage> getReceived() {
 		return received;
 	}
 
-	public void setReceived(List<UMessage> received) {
+	public void setReceived(Set<UMessage> received) {
 		this.received = received;
 	}
 
+	/**
+	 * Adds a copy to those sent or received, as per its direction. Copies not
+	 * yet loaded are not loaded just for this: once the copy is persisted (and
+	 * flushed), they will include it when loaded.
+	 */
+	public void addCopy(UMessage um) {
+		Set<UMessage> copies = um.getDirection() == UMessage.Direction.SENT ? sent : received;
+		if (Hibernate.isInitialized(copies)) {
+			copies.add(um);
+		}
+	}
+
 	@Override
 	@Transient
 	@JsonIgnore
@@ -214,7 +311,7 @@ public class User extends Referenceable {
 		return roles.toLowerCase();
 	}
 	public void setType(String type) {
-		this.roles = ""+Role.valueOf(type.toUpperCase());
+		setRoles(""+Role.valueOf(type.toUpperCase()));
 	}
 
 	@Transient
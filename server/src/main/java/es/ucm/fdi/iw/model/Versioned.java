@@ -0,0 +1,16 @@
+package es.ucm.fdi.iw.model;
+
+/**
+ * Something that clients can keep a copy of, and ask for changes to.
+ *
+ * Every change to an instance increases its version (see Instance.getVersion);
+ * and everything changed is marked with the version that changed it.
+ */
+public interface Versioned {
+    /**
+     * @return instance version when this was last created or changed
+     */
+    long getChanged();
+
+    void setChanged(long changed);
+}
@@ -1,5 +1,7 @@
 package es.ucm.fdi.iw.control;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
@@ -7,10 +9,18 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jayway.jsonpath.JsonPath;
 import es.ucm.fdi.iw.IwApplication;
+import es.ucm.fdi.iw.Migrations;
 
+import es.ucm.fdi.iw.model.Delivery;
+import es.ucm.fdi.iw.model.Instance;
 import es.ucm.fdi.iw.model.Message;
+import es.ucm.fdi.iw.model.Token;
 import es.ucm.fdi.iw.model.UMessage;
 import es.ucm.fdi.iw.model.User;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -18,28 +28,113 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.web.server.LocalServerPort;
 import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.context.WebApplicationContext;
 
 import javax.persistence.EntityManager;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static es.ucm.fdi.iw.control.ApiController.generateRandomBase64Token;
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = IwApplication.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = IwApplication.class,
+        properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+                + "es.ucm.fdi.iw.control.ApiControllerTest$Statements")
 public class ApiControllerTest {
 
+    /**
+     * Records the SQL that Hibernate prepares on a thread, while asked to.
+     */
+    public static class Statements implements StatementInspector {
+        private static final List<String> recorded = Collections.synchronizedList(new ArrayList<>());
+        private static volatile Thread recording;
+        private static volatile Thread hooked;
+        private static volatile String hookPrefix;
+        private static volatile Runnable hook;
+
+        /**
+         * Starts recording statements prepared by the current thread
+         */
+        static void start() {
+            recorded.clear();
+            recording = Thread.currentThread();
+        }
+
+        /**
+         * @return how many statements were recorded since start()
+         */
+        static int count() {
+            recording = null;
+            return recorded.size();
+        }
+
+        /**
+         * @return statements recorded since start() that write to a table
+         */
+        static List<String> writingTo(String table) {
+            recording = null;
+            String t = table.toLowerCase();
+            synchronized (recorded) {
+                return recorded.stream()
+                        .map(String::toLowerCase)
+                        .filter(sql -> sql.startsWith("insert into " + t + " ")
+                                || sql.startsWith("delete from " + t + " ")
+                                || sql.startsWith("update " + t + " "))
+                        .collect(Collectors.toList());
+            }
+        }
+
+        /**
+         * Runs something once, just before the current thread next prepares a
+         * statement that starts with a prefix
+         */
+        static void before(String prefix, Runnable r) {
+            hookPrefix = prefix.toLowerCase();
+            hook = r;
+            hooked = Thread.currentThread();
+        }
+
+        @Override
+        public String inspect(String sql) {
+            if (recording == Thread.currentThread()) {
+                recorded.add(sql);
+            }
+            if (hooked == Thread.currentThread() && sql.toLowerCase().startsWith(hookPrefix)) {
+                hooked = null;
+                hook.run();
+            }
+            return sql;
+        }
+    }
+
     @LocalServerPort
     private int port;
 
@@ -52,6 +147,27 @@ public class ApiControllerTest {
 	@Autowired
 	private EntityManager entityManager;
 
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	@Autowired
+	private DeliveryWorker deliveryWorker;
+
+	@Autowired
+	private FetchPlan fetchPlan;
+
+	@Autowired
+	private PasswordHasher passwordHasher;
+
+	@Autowired
+	private Migrations migrations;
+
+	@Autowired
+	private TokenCache tokenCache;
+
+	@Autowired
+	private TokenReaper tokenReaper;
+
 
 
 	@Before
@@ -77,10 +193,13 @@ public class ApiControllerTest {
 
     @Test
     public void simpleGoodLogin() throws Exception {
-        MvcResult mvcResult = this.mockMvc.perform(
+        MvcResult asyncResult = this.mockMvc.perform(
                 post("/api/login")
                         .contentType(MediaType.APPLICATION_JSON_UTF8)
                         .content("{\"uid\": \"admin_g01\",\"password\": \"!magic\"}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult mvcResult = this.mockMvc.perform(asyncDispatch(asyncResult))
                 .andDo(print()).andExpect(status().isOk())
                 .andReturn();
         String result = mvcResult.getResponse().getContentAsString();
@@ -89,11 +208,73 @@ public class ApiControllerTest {
         assertTrue(token.length() > 0);
     }
 
+    @Test
+    public void wrongPasswordIsRejected() throws Exception {
+        String token = login();
+        ObjectNode teacher = newRandomUser(om, "Wrong", User.Role.TEACHER);
+        this.mockMvc.perform(post("/api/" + token + "/adduser")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(teacher.toString()))
+                .andExpect(status().isOk());
+
+        // checked on the bcrypt pool; the failure comes back through the future
+        MvcResult asyncResult = this.mockMvc.perform(
+                post("/api/login")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(om.createObjectNode()
+                                .put("uid", teacher.get("uid").asText())
+                                .put("password", teacher.get("password").asText() + "x")
+                                .toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(asyncResult))
+                .andDo(print()).andExpect(status().isForbidden())
+                .andExpect(content().string(containsString("Invalid uid or password")));
+
+        asyncResult = this.mockMvc.perform(
+                post("/api/login")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(teacher.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.token").isNotEmpty());
+    }
+
+    @Test
+    public void tooManyConcurrentLoginsAreTurnedAway() throws Exception {
+        // a (bogus) hash with a work factor of 2^15 keeps each check busy for a while
+        String slow = "$2a$15$" + "abcdefghijklmnopqrstuu"
+                + "abcdefghijklmnopqrstuvwxyz01234";
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        try {
+            pending.add(passwordHasher.matches("admin_g02", "guess", slow));
+            pending.add(passwordHasher.matches("admin_g02", "guess", slow));
+            this.mockMvc.perform(
+                    post("/api/login")
+                            .contentType(MediaType.APPLICATION_JSON_UTF8)
+                            .content("{\"uid\": \"admin_g02\",\"password\": \"guess\"}"))
+                    .andDo(print()).andExpect(status().isServiceUnavailable())
+                    .andExpect(content().string(containsString("Too many concurrent logins")));
+        } finally {
+            for (CompletableFuture<Boolean> f : pending) {
+                f.join();
+            }
+        }
+    }
+
     private String login() throws Exception {
-        MvcResult mvcResult = this.mockMvc.perform(
+        return login("admin_g01");
+    }
+
+    private String login(String uid) throws Exception {
+        MvcResult asyncResult = this.mockMvc.perform(
                 post("/api/login")
                         .contentType(MediaType.APPLICATION_JSON_UTF8)
-                        .content("{\"uid\": \"admin_g01\",\"password\": \"!magic\"}"))
+                        .content("{\"uid\": \"" + uid + "\",\"password\": \"!magic\"}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult mvcResult = this.mockMvc.perform(asyncDispatch(asyncResult))
                 .andDo(print()).andExpect(status().isOk())
                 .andReturn();
         String result = mvcResult.getResponse().getContentAsString();
@@ -102,6 +283,105 @@ public class ApiControllerTest {
         return token;
     }
 
+    private void expectRejected(String token, String why) throws Exception {
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string(containsString(why)));
+    }
+
+    @Test
+    public void loggingOutForgetsCachedTokens() throws Exception {
+        String token = login();
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk());
+        assertTrue(tokenCache.get(token) != null);
+
+        this.mockMvc.perform(post("/api/" + token + "/logout"))
+                .andExpect(status().isOk());
+        assertTrue(tokenCache.get(token) == null);
+        expectRejected(token, "Invalid token");
+    }
+
+    @Test
+    public void removingUsersForgetsTheirCachedTokens() throws Exception {
+        String admin = login("admin_g04");
+        ObjectNode teacher = newRandomUser(om, "Removed", User.Role.TEACHER);
+        String uid = teacher.get("uid").asText();
+        this.mockMvc.perform(post("/api/" + admin + "/adduser")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(teacher.toString()))
+                .andExpect(status().isOk());
+        String token = login(uid);
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk());
+        assertTrue(tokenCache.get(token) != null);
+
+        this.mockMvc.perform(post("/api/" + admin + "/rm/" + uid))
+                .andExpect(status().isOk());
+        assertTrue(tokenCache.get(token) == null);
+        expectRejected(token, "Invalid token");
+    }
+
+    @Test
+    public void idleAndOldTokensExpire() throws Exception {
+        // not used for a day, as far as the cache knows
+        String idle = login();
+        tokenCache.touch(idle, LocalDateTime.now().minusDays(1));
+        expectRejected(idle, "Expired token");
+        assertTrue(tokenCache.get(idle) == null);
+
+        // issued two days ago, as stored; used just now
+        String old = login();
+        new TransactionTemplate(transactionManager).execute(status ->
+                entityManager.createQuery("update Token set issued = :issued where key = :key")
+                        .setParameter("issued", LocalDateTime.now().minusDays(2))
+                        .setParameter("key", old)
+                        .executeUpdate());
+        tokenCache.invalidate(old);
+        expectRejected(old, "Expired token");
+    }
+
+    @Test
+    public void expiredTokensAreReapedInBatches() throws Exception {
+        login("admin_g06");
+        Object batchSize = ReflectionTestUtils.getField(tokenReaper, "batchSize");
+        ReflectionTestUtils.setField(tokenReaper, "batchSize", 3);
+        try {
+            TransactionTemplate tt = new TransactionTemplate(transactionManager);
+            List<String> keys = tt.execute(status -> {
+                User u = findUser("admin_g06");
+                List<String> result = new ArrayList<>();
+                for (int i = 0; i < 7; i++) {
+                    Token t = new Token();
+                    t.setUser(u);
+                    t.setKey(generateRandomBase64Token(16));
+                    t.setIssued(LocalDateTime.now().minusDays(2));
+                    t.setLastUsed(t.getIssued());
+                    entityManager.persist(t);
+                    result.add(t.getKey());
+                }
+                return result;
+            });
+            // including any left expired by other tests
+            long expired = tt.execute(status -> entityManager.createQuery(
+                    "select count(*) from Token where issued < :oldest or lastUsed < :idlest", Long.class)
+                    .setParameter("oldest", LocalDateTime.now().minusHours(24))
+                    .setParameter("idlest", LocalDateTime.now().minusMinutes(120))
+                    .getSingleResult());
+
+            Statements.start();
+            tokenReaper.reap();
+            List<String> deletes = Statements.writingTo("token");
+            assertEquals((expired + 2) / 3, deletes.size());
+            long left = tt.execute(status -> entityManager.createQuery(
+                    "select count(*) from Token where key in :keys", Long.class)
+                    .setParameter("keys", keys)
+                    .getSingleResult());
+            assertEquals(0, left);
+        } finally {
+            ReflectionTestUtils.setField(tokenReaper, "batchSize", batchSize);
+        }
+    }
+
     private void addTelsToArray(ArrayNode a, int n) {
 	    for (int i=0; i<n; i++) {
 	        StringBuilder sb = new StringBuilder();
@@ -213,4 +493,1328 @@ public class ApiControllerTest {
                     .andReturn();
         }
 	}
+
+    private User findUser(String uid) {
+        return entityManager.createQuery("from User where uid = :uid", User.class)
+                .setParameter("uid", uid)
+                .getSingleResult();
+    }
+
+    @Test
+    public void roleMasksAreFilledInAndBadRolesSkipped() throws Exception {
+        String token = login("admin_g03");
+        ObjectNode teacher = newRandomUser(om, "Masked", User.Role.TEACHER);
+        ObjectNode guardian = newRandomUser(om, "Masked", User.Role.GUARDIAN);
+        for (ObjectNode n : new ObjectNode[] {teacher, guardian}) {
+            this.mockMvc.perform(post("/api/" + token + "/adduser")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8).content(n.toString()))
+                    .andExpect(status().isOk());
+        }
+        String tuid = teacher.get("uid").asText();
+        String guid = guardian.get("uid").asText();
+
+        // as left by versions without role masks; one with a role that no longer exists
+        new TransactionTemplate(transactionManager).execute(status -> {
+            entityManager.createQuery("update User set roleMask = 0 where uid = :uid")
+                    .setParameter("uid", tuid)
+                    .executeUpdate();
+            entityManager.createQuery("update User set roleMask = 0, roles = :roles where uid = :uid")
+                    .setParameter("roles", "GUARDIAN,,JANITOR")
+                    .setParameter("uid", guid)
+                    .executeUpdate();
+            return null;
+        });
+        migrations.migrate();
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            User t = findUser(tuid);
+            assertEquals(User.Role.TEACHER.mask(), t.getRoleMask());
+            assertEquals(User.Role.GUARDIAN.mask(), findUser(guid).getRoleMask());
+            List<String> teachers = entityManager.createQuery(
+                    "select uid from User where instance = :i and roleMask = :m", String.class)
+                    .setParameter("i", t.getInstance())
+                    .setParameter("m", User.Role.TEACHER.mask())
+                    .getResultList();
+            assertTrue(teachers.contains(tuid));
+            assertFalse(teachers.contains(guid));
+            return null;
+        });
+
+        // the guardian, bad role and all, can still log in and list
+        this.mockMvc.perform(post("/api/" + login(guid) + "/list"))
+                .andExpect(status().isOk());
+    }
+
+    private long nextUserId() {
+        return Long.parseLong(String.valueOf(entityManager.createNativeQuery(
+                "select next_value from information_schema.sequences where sequence_name = 'USER_SEQ'")
+                .getSingleResult()).trim());
+    }
+
+    @Test
+    public void sequencesAreAdvancedPastExistingIds() throws Exception {
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        long original = tt.execute(status -> nextUserId());
+        try {
+            // as left by versions that took ids from identity columns
+            tt.execute(status -> entityManager.createNativeQuery(
+                    "alter sequence user_seq restart with 1").executeUpdate());
+            migrations.migrate();
+
+            tt.execute(status -> {
+                long max = entityManager.createQuery("select max(id) from User", Long.class)
+                        .getSingleResult();
+                assertTrue(nextUserId() >= max + 50);
+                return null;
+            });
+        } finally {
+            // ids already handed out to Hibernate must not be handed out again
+            tt.execute(status -> entityManager.createNativeQuery(
+                    "alter sequence user_seq restart with " + Math.max(original, nextUserId()))
+                    .executeUpdate());
+        }
+    }
+
+    @Test
+    public void listSinceOnlyReturnsChanges() throws Exception {
+        String token = login();
+        String className = "delta_" + generateRandomBase64Token(3);
+        MvcResult added = this.mockMvc.perform(
+                post("/api/" + token + "/addclass")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(om.createObjectNode().put("cid", className).toString()))
+                .andExpect(status().isOk())
+                .andReturn();
+        int version = JsonPath.parse(added.getResponse().getContentAsString()).read("$.version");
+
+        ObjectNode student = newRandomStudent(om, "Delta", className);
+        this.mockMvc.perform(
+                post("/api/" + token + "/addstudent?since=" + version)
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(student.toString()))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.version").value(version + 1))
+                .andExpect(jsonPath("$.students.length()").value(1))
+                .andExpect(jsonPath("$.students[0].sid").value(student.get("sid").asText()))
+                .andExpect(jsonPath("$.classes.length()").value(1))
+                .andExpect(jsonPath("$.users.length()").value(0))
+                .andExpect(jsonPath("$.removed.students.length()").value(0));
+
+        this.mockMvc.perform(
+                post("/api/" + token + "/rm/" + student.get("sid").asText() + "?since=" + (version + 1)))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.students.length()").value(0))
+                .andExpect(jsonPath("$.removed.students[0]").value(student.get("sid").asText()));
+
+        // without since, everything is returned, and nothing is reported as removed
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes.length()").value(greaterThan(0)))
+                .andExpect(jsonPath("$.removed").doesNotExist());
+    }
+
+    @Test
+    public void mutationsReturnWhatIsAskedFor() throws Exception {
+        String token = login();
+        String className = "mode_" + generateRandomBase64Token(3);
+        this.mockMvc.perform(
+                post("/api/" + token + "/addclass?return=none")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(om.createObjectNode().put("cid", className).toString()))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes").doesNotExist())
+                .andExpect(jsonPath("$.changed.classes[0]").value(className))
+                .andExpect(jsonPath("$.removed").isEmpty());
+
+        ObjectNode student = newRandomStudent(om, "Mode", className);
+        String sid = student.get("sid").asText();
+        this.mockMvc.perform(
+                post("/api/" + token + "/addstudent?return=delta")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(student.toString()))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.students.length()").value(1))
+                .andExpect(jsonPath("$.students[0].sid").value(sid))
+                .andExpect(jsonPath("$.classes.length()").value(1))
+                .andExpect(jsonPath("$.removed.students.length()").value(0));
+
+        this.mockMvc.perform(post("/api/" + token + "/rm/" + sid + "?return=none"))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.changed.classes[0]").value(className))
+                .andExpect(jsonPath("$.changed.students").doesNotExist())
+                .andExpect(jsonPath("$.removed.students[0]").value(sid));
+
+        // full ignores since
+        this.mockMvc.perform(post("/api/" + token + "/rm/" + className + "?return=full&since=0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.removed").doesNotExist())
+                .andExpect(jsonPath("$.users.length()").value(greaterThan(0)));
+
+        this.mockMvc.perform(
+                post("/api/" + token + "/addclass?return=some")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(om.createObjectNode().put("cid", className).toString()))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(jsonPath("$.classes[?(@.cid == '" + className + "')]").isEmpty());
+    }
+
+    private static ObjectNode op(ArrayNode batch, String op, JsonNode data) {
+        ObjectNode n = batch.addObject();
+        n.put("op", op);
+        n.set("data", data);
+        return n;
+    }
+
+    @Test
+    public void batchesApplyAllOrNothing() throws Exception {
+        String token = login();
+        String className = "batch_" + generateRandomBase64Token(3);
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", className));
+        ObjectNode kept = newRandomStudent(om, "Batch", className);
+        ObjectNode gone = newRandomStudent(om, "Gone", className);
+        op(batch, "addstudent", kept);
+        op(batch, "addstudent", gone);
+        ObjectNode guardian = newRandomUser(om, "Batch", User.Role.GUARDIAN);
+        guardian.putArray("students").add(kept.get("sid").asText());
+        op(batch, "adduser", guardian);
+        op(batch, "set", om.createObjectNode()
+                .put("sid", kept.get("sid").asText()).put("first_name", "Renamed"));
+        op(batch, "rm", om.createObjectNode().put("oid", gone.get("sid").asText()));
+
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.changed.classes[0]").value(className))
+                .andExpect(jsonPath("$.changed.students.length()").value(1))
+                .andExpect(jsonPath("$.removed.students[0]").value(gone.get("sid").asText()));
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(jsonPath("$.students[?(@.sid == '" + kept.get("sid").asText()
+                        + "')].firstName").value("Renamed"))
+                .andExpect(jsonPath("$.users[?(@.uid == '" + guardian.get("uid").asText()
+                        + "')].students[0]").value(kept.get("sid").asText()));
+
+        // a bad operation anywhere, and nothing is changed
+        String otherClass = "batch_" + generateRandomBase64Token(3);
+        batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", otherClass));
+        op(batch, "addstudent", newRandomStudent(om, "Orphan", "no_such_class"));
+        this.mockMvc.perform(post("/api/" + token + "/batch")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string(containsString("Operation 1 (addstudent)")));
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(jsonPath("$.classes[?(@.cid == '" + otherClass + "')]").isEmpty());
+        // including the refs that it would have added
+        batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", otherClass));
+        this.mockMvc.perform(post("/api/" + token + "/batch")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void batchesCanAddManyUsersWithPasswords() throws Exception {
+        String token = login();
+        ArrayNode batch = om.createArrayNode();
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            ObjectNode teacher = newRandomUser(om, "Hashed_" + i, User.Role.TEACHER);
+            op(batch, "adduser", teacher);
+            uids.add(teacher.get("uid").asText());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.changed.users.length()").value(40));
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(jsonPath("$.users[?(@.uid == '" + uids.get(39) + "')]").isNotEmpty());
+    }
+
+    @Test
+    public void listIsCachedUntilSomethingVisibleChanges() throws Exception {
+        String token = login();
+        String first = this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        int hits = JsonPath.parse(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString()).read("$.states.hits");
+
+        // nothing changed: same state, from the cache
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(first));
+        this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andExpect(jsonPath("$.states.hits").value(hits + 1));
+
+        // adding a class evicts the admin's state
+        String className = "cached_" + generateRandomBase64Token(3);
+        this.mockMvc.perform(
+                post("/api/" + token + "/addclass")
+                        .contentType(MediaType.APPLICATION_JSON_UTF8)
+                        .content(om.createObjectNode().put("cid", className).toString()))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString(className)));
+    }
+
+    @Test
+    public void refsFollowAddsAndRemovals() throws Exception {
+        String token = login();
+        String className = "refs_" + generateRandomBase64Token(3);
+        String body = om.createObjectNode().put("cid", className).toString();
+        this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(body))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(body))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string(containsString("Duplicate class")));
+        this.mockMvc.perform(post("/api/" + token + "/rm/" + className))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(post("/api/" + token + "/rm/" + className))
+                .andExpect(status().isBadRequest());
+        this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(body))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void messagesArePagedInOrder() throws Exception {
+        String token = login();
+        ObjectNode teacher = newRandomUser(om, "Paged", User.Role.TEACHER);
+        String uid = teacher.get("uid").asText();
+        this.mockMvc.perform(post("/api/" + token + "/adduser")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(teacher.toString()))
+                .andExpect(status().isOk());
+        // to self, so that each message is both sent and received
+        for (int i = 0; i < 3; i++) {
+            ObjectNode m = om.createObjectNode()
+                    .put("msgid", generateRandomBase64Token(6))
+                    .put("from", uid)
+                    .put("title", "title " + i)
+                    .put("body", "body " + i);
+            m.putArray("to").add(uid);
+            this.mockMvc.perform(post("/api/" + token + "/send")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8).content(m.toString()))
+                    .andExpect(status().isOk());
+        }
+
+        String teacherToken = login(uid);
+        String first = this.mockMvc.perform(get("/api/" + teacherToken + "/messages?limit=4"))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages.length()").value(4))
+                .andExpect(jsonPath("$.messages[0].subject").value("title 0"))
+                .andExpect(jsonPath("$.more").value(true))
+                .andReturn().getResponse().getContentAsString();
+        String next = JsonPath.parse(first).read("$.next");
+        this.mockMvc.perform(get("/api/" + teacherToken + "/messages?limit=4&after=" + next))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages.length()").value(2))
+                .andExpect(jsonPath("$.messages[1].subject").value("title 2"))
+                .andExpect(jsonPath("$.more").value(false));
+        this.mockMvc.perform(get("/api/" + teacherToken + "/messages?after=bogus"))
+                .andExpect(status().isBadRequest());
+
+        // and capped, or left out of, the main state
+        this.mockMvc.perform(post("/api/" + teacherToken + "/list?messages=2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages.length()").value(2))
+                .andExpect(jsonPath("$.messages[1].subject").value("title 2"));
+        this.mockMvc.perform(post("/api/" + teacherToken + "/list?messages=0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages.length()").value(0));
+        this.mockMvc.perform(post("/api/" + teacherToken + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.messages.length()").value(6));
+    }
+
+    /**
+     * Dates may come with offsets, or with or without fractions of a second;
+     * messages are still paged through in time order, regardless of how their
+     * dates compare as sent. Dates stored by older versions are normalized.
+     */
+    @Test
+    public void messagesArePagedInTimeOrder() throws Exception {
+        String token = login();
+        ObjectNode teacher = newRandomUser(om, "Dated", User.Role.TEACHER);
+        String uid = teacher.get("uid").asText();
+        this.mockMvc.perform(post("/api/" + token + "/adduser")
+                .contentType(MediaType.APPLICATION_JSON_UTF8).content(teacher.toString()))
+                .andExpect(status().isOk());
+        // in time order; but, as strings, the last one sorts first
+        String[] dates = {"2019-01-02T01:00:00+14:00", "2019-01-01T15:00:00.5Z", "2019-01-01T20:00:00-10:00"};
+        List<String> mids = new ArrayList<>();
+        for (String date : dates) {
+            ObjectNode m = om.createObjectNode()
+                    .put("msgid", generateRandomBase64Token(6))
+                    .put("from", "admin_g01")
+                    .put("date", date)
+                    .put("title", date)
+                    .put("body", date);
+            m.putArray("to").add(uid);
+            mids.add(m.get("msgid").asText());
+            this.mockMvc.perform(post("/api/" + token + "/send")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8).content(m.toString()))
+                    .andExpect(status().isOk());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/send")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(om.createObjectNode().put("msgid", generateRandomBase64Token(6))
+                        .put("from", "admin_g01").put("date", "yesterday")
+                        .put("title", "t").put("body", "b").set("to", om.createArrayNode().add(uid))
+                        .toString()))
+                .andExpect(status().isBadRequest());
+
+        String teacherToken = login(uid);
+        String after = null;
+        for (String mid : mids) {
+            String page = this.mockMvc.perform(get("/api/" + teacherToken + "/messages?limit=1"
+                    + (after == null ? "" : "&after=" + after)))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.messages[0].msgid").value(mid))
+                    .andReturn().getResponse().getContentAsString();
+            after = JsonPath.parse(page).read("$.next");
+        }
+
+        // as stored before dates were normalized
+        new TransactionTemplate(transactionManager).execute(status -> entityManager.createQuery(
+                "update UMessage um set um.date = :date where um.message in "
+                        + "(select m from Message m where m.mid = :mid)")
+                .setParameter("date", dates[2])
+                .setParameter("mid", mids.get(2))
+                .executeUpdate()
+                + entityManager.createQuery("update Message set date = :date where mid = :mid")
+                .setParameter("date", dates[2])
+                .setParameter("mid", mids.get(2))
+                .executeUpdate());
+        migrations.migrate();
+        this.mockMvc.perform(get("/api/" + teacherToken + "/messages"))
+                .andExpect(jsonPath("$.messages[2].msgid").value(mids.get(2)))
+                .andExpect(jsonPath("$.messages[2].date").value(
+                        Message.DATE_FORMAT.format(Message.parseDate(dates[2]))));
+    }
+
+    @Test
+    public void listAnswersNotModifiedUntilSomethingChanges() throws Exception {
+        String token = login();
+        String tag = this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        this.mockMvc.perform(post("/api/" + token + "/list").header("If-None-Match", tag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        // different parameters, different tags
+        this.mockMvc.perform(post("/api/" + token + "/list?messages=0").header("If-None-Match", tag))
+                .andExpect(status().isOk());
+
+        // mutations return the new tag
+        String changed = this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(om.createObjectNode().put("cid", "etag_" + generateRandomBase64Token(3)).toString()))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn().getResponse().getHeader("ETag");
+        this.mockMvc.perform(post("/api/" + token + "/list").header("If-None-Match", tag))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", changed));
+        this.mockMvc.perform(post("/api/" + token + "/list").header("If-None-Match", changed))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void binaryEncodingsOnRequest() throws Exception {
+        ObjectMapper smile = Jackson2ObjectMapperBuilder.smile().build();
+        ObjectMapper cbor = Jackson2ObjectMapperBuilder.cbor().build();
+        MediaType smileType = Encodings.Encoding.SMILE.getMediaType();
+        MediaType cborType = Encodings.Encoding.CBOR.getMediaType();
+
+        // smile in, cbor out
+        MvcResult asyncResult = this.mockMvc.perform(post("/api/login")
+                .contentType(smileType)
+                .accept(cborType)
+                .content(smile.writeValueAsBytes(om.createObjectNode()
+                        .put("uid", "admin_g01").put("password", "!magic"))))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        byte[] bytes = this.mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(cborType))
+                .andReturn().getResponse().getContentAsByteArray();
+        String token = cbor.readTree(bytes).get("token").asText();
+
+        // same state, whatever the encoding; but different tags
+        MvcResult json = this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andReturn();
+        MvcResult binary = this.mockMvc.perform(post("/api/" + token + "/list")
+                .accept(smileType, MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(smileType))
+                .andReturn();
+        assertEquals(om.readTree(json.getResponse().getContentAsByteArray()),
+                smile.readTree(binary.getResponse().getContentAsByteArray()));
+        this.mockMvc.perform(post("/api/" + token + "/list")
+                .accept(smileType)
+                .header("If-None-Match", json.getResponse().getHeader("ETag")))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(post("/api/" + token + "/list")
+                .accept(smileType)
+                .header("If-None-Match", binary.getResponse().getHeader("ETag")))
+                .andExpect(status().isNotModified());
+
+        // mutations, too
+        String cid = "bin_" + generateRandomBase64Token(3);
+        bytes = this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(cborType)
+                .accept(cborType)
+                .content(cbor.writeValueAsBytes(om.createObjectNode().put("cid", cid))))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(cborType))
+                .andReturn().getResponse().getContentAsByteArray();
+        boolean found = false;
+        for (JsonNode c : cbor.readTree(bytes).get("classes")) {
+            found |= cid.equals(c.get("cid").asText());
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void importsSampleDocuments() throws Exception {
+        String token = login("admin_g09");
+        byte[] sample = Files.readAllBytes(Paths.get("sample.json"));
+        this.mockMvc.perform(post("/api/" + token + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(sample))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes").value(6))
+                .andExpect(jsonPath("$.students").value(113))
+                .andExpect(jsonPath("$.users").value(181))
+                .andExpect(jsonPath("$.messages").value(30));
+
+        // what each imported user sees is what sample.json says
+        JsonNode doc = om.readTree(sample);
+        JsonNode klass = doc.get("classes").get(0);
+        String teacher = login(klass.get("teachers").get(0).asText());
+        this.mockMvc.perform(post("/api/" + teacher + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes.length()").value(1))
+                .andExpect(jsonPath("$.classes[0].cid").value(klass.get("cid").asText()))
+                .andExpect(jsonPath("$.students.length()").value(klass.get("students").size()));
+        JsonNode student = doc.get("students").get(0);
+        String guardian = login(student.get("guardians").get(0).asText());
+        this.mockMvc.perform(post("/api/" + guardian + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.students[0].sid").value(student.get("sid").asText()))
+                .andExpect(jsonPath("$.users[0].uid").value(klass.get("teachers").get(0).asText()));
+        JsonNode message = doc.get("messages").get(0);
+        String sender = login(message.get("from").asText());
+        this.mockMvc.perform(post("/api/" + sender + "/list"))
+                .andExpect(jsonPath("$.messages[?(@.msgid == '"
+                        + message.get("msgid").asText() + "')].to.length()").value(message.get("to").size()));
+
+        // errors anywhere, and nothing is imported
+        ObjectNode bad = om.createObjectNode();
+        bad.putArray("classes").addObject().put("cid", "import_" + generateRandomBase64Token(3));
+        bad.putArray("students").addObject()
+                .put("sid", "import_" + generateRandomBase64Token(3))
+                .put("first_name", "A").put("last_name", "B")
+                .putArray("guardians").add("nobody_" + generateRandomBase64Token(3));
+        this.mockMvc.perform(post("/api/" + token + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(bad.toString()))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string(containsString("not found")));
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(jsonPath("$.classes.length()").value(6));
+    }
+
+    @Test
+    public void importsBumpRevisionsOfWhatTheyLink() throws Exception {
+        // not admin_g08: importsLargeDocuments makes its state too large to log in quickly
+        String token = login("admin_g02");
+        String cid = "linked_" + generateRandomBase64Token(3);
+        this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(om.createObjectNode().put("cid", cid).toString()))
+                .andExpect(status().isOk());
+        long before = new TransactionTemplate(transactionManager).execute(status ->
+                entityManager.createQuery("select revision from EClass where cid = :cid", Long.class)
+                        .setParameter("cid", cid).getSingleResult());
+
+        ObjectNode doc = om.createObjectNode();
+        doc.putArray("students").addObject()
+                .put("sid", "linked_" + generateRandomBase64Token(3))
+                .put("first_name", "A").put("last_name", "B")
+                .put("cid", cid);
+        this.mockMvc.perform(post("/api/" + token + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(doc.toString()))
+                .andExpect(status().isOk());
+
+        // so that a concurrent /set on the class, read before, conflicts
+        long after = new TransactionTemplate(transactionManager).execute(status ->
+                entityManager.createQuery("select revision from EClass where cid = :cid", Long.class)
+                        .setParameter("cid", cid).getSingleResult());
+        assertTrue(after > before);
+    }
+
+    /**
+     * Writes a sample.json-like document, streaming, with many students.
+     */
+    private static void writeLargeDocument(File f, String prefix, int classCount, int studentsPerClass)
+            throws Exception {
+        try (JsonGenerator g = new ObjectMapper().getFactory().createGenerator(f, JsonEncoding.UTF8)) {
+            g.writeStartObject();
+            g.writeArrayFieldStart("classes");
+            for (int c = 0; c < classCount; c++) {
+                g.writeStartObject();
+                g.writeStringField("cid", prefix + "c" + c);
+                g.writeArrayFieldStart("teachers");
+                g.writeString(prefix + "t" + c);
+                g.writeEndArray();
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeArrayFieldStart("students");
+            for (int c = 0; c < classCount; c++) {
+                for (int s = 0; s < studentsPerClass; s++) {
+                    g.writeStartObject();
+                    g.writeStringField("sid", prefix + "s" + c + "_" + s);
+                    g.writeStringField("first_name", "Student");
+                    g.writeStringField("last_name", "" + s);
+                    g.writeStringField("cid", prefix + "c" + c);
+                    g.writeArrayFieldStart("guardians");
+                    g.writeString(prefix + "g" + c + "_" + s);
+                    g.writeEndArray();
+                    g.writeEndObject();
+                }
+            }
+            g.writeEndArray();
+            g.writeArrayFieldStart("users");
+            for (int c = 0; c < classCount; c++) {
+                g.writeStartObject();
+                g.writeStringField("uid", prefix + "t" + c);
+                g.writeStringField("type", "teacher");
+                g.writeStringField("first_name", "Teacher");
+                g.writeStringField("last_name", "" + c);
+                g.writeEndObject();
+                for (int s = 0; s < studentsPerClass; s++) {
+                    g.writeStartObject();
+                    g.writeStringField("uid", prefix + "g" + c + "_" + s);
+                    g.writeStringField("type", "guardian");
+                    g.writeStringField("first_name", "Guardian");
+                    g.writeStringField("last_name", "" + s);
+                    g.writeEndObject();
+                }
+            }
+            g.writeEndArray();
+            g.writeArrayFieldStart("messages");
+            for (int c = 0; c < classCount; c++) {
+                g.writeStartObject();
+                g.writeStringField("msgid", prefix + "m" + c);
+                g.writeStringField("from", prefix + "t" + c);
+                g.writeArrayFieldStart("to");
+                g.writeString(prefix + "c" + c);
+                g.writeEndArray();
+                g.writeStringField("title", "To all guardians");
+                g.writeStringField("body", "Hello");
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+    }
+
+    /**
+     * Imports a generated document with 20k students (and as many guardians),
+     * without keeping them all in the persistence context.
+     */
+    @Test
+    public void importsLargeDocuments() throws Exception {
+        String token = login("admin_g08");
+        int classes = 100, studentsPerClass = 200;
+        File f = File.createTempFile("import", ".json");
+        f.deleteOnExit();
+        writeLargeDocument(f, "big_", classes, studentsPerClass);
+
+        // messages come last: by then, only the latest batch should be managed
+        AtomicInteger managed = new AtomicInteger(-1);
+        Statements.before("insert into message ", () -> managed.set(
+                entityManager.unwrap(Session.class).getStatistics().getEntityCount()));
+        this.mockMvc.perform(post("/api/" + token + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(Files.readAllBytes(f.toPath())))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.students").value(classes * studentsPerClass))
+                .andExpect(jsonPath("$.links").value(2 * classes * studentsPerClass + classes));
+        assertTrue("managed entities: " + managed.get(),
+                managed.get() >= 0 && managed.get() < classes * studentsPerClass / 10);
+
+        // every guardian got their class's message
+        String guardian = login("big_g7_3");
+        this.mockMvc.perform(post("/api/" + guardian + "/list"))
+                .andExpect(jsonPath("$.messages.length()").value(1))
+                .andExpect(jsonPath("$.messages[0].msgid").value("big_m7"));
+    }
+
+    private String export(String token) throws Exception {
+        MvcResult asyncResult = this.mockMvc.perform(get("/api/" + token + "/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return this.mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+    }
+
+    private static List<String> linesWith(String text, String prefix) {
+        return Arrays.stream(text.split("\n"))
+                .filter(l -> l.contains(prefix))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Exports an instance, imports that (with refs renamed) into another one,
+     * and expects to export the same thing back.
+     */
+    @Test
+    public void exportsCanBeImportedBack() throws Exception {
+        String source = login("admin_g07"), target = login("admin_g06");
+        int n = rng.nextInt(100000);
+        String prefix = "expa" + n + "_", renamed = "expb" + n + "_";
+        File f = File.createTempFile("export", ".json");
+        f.deleteOnExit();
+        writeLargeDocument(f, prefix, 2, 3);
+        this.mockMvc.perform(post("/api/" + source + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(Files.readAllBytes(f.toPath())))
+                .andExpect(status().isOk());
+
+        // in export order, which is also import order; admins do not carry the prefix
+        List<String> exported = linesWith(export(source), prefix);
+        assertEquals(2 + 6 + 2 + 6 + 2, exported.size());
+        String document = exported.stream()
+                .map(l -> l.replace(prefix, renamed))
+                .collect(Collectors.joining("\n"));
+        this.mockMvc.perform(post("/api/" + target + "/import")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(document))
+                .andDo(print()).andExpect(status().isOk())
+                .andExpect(jsonPath("$.students").value(6))
+                .andExpect(jsonPath("$.messages").value(2));
+        assertEquals(linesWith(document, renamed), linesWith(export(target), renamed));
+
+        // and guardians still see their class's message
+        String guardian = login(renamed + "g1_2");
+        this.mockMvc.perform(post("/api/" + guardian + "/list"))
+                .andExpect(jsonPath("$.messages.length()").value(1))
+                .andExpect(jsonPath("$.messages[0].msgid").value(renamed + "m1"));
+    }
+
+    private long pendingDeliveries(String token) throws Exception {
+        return JsonPath.parse(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString())
+                .read("$.deliveries.pending", Long.class);
+    }
+
+    private void awaitDeliveries(String token) throws Exception {
+        for (int i = 0; i < 200 && pendingDeliveries(token) > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, pendingDeliveries(token));
+    }
+
+    private long copiesReceived(String mid) {
+        return new TransactionTemplate(transactionManager).execute(status -> entityManager.createQuery(
+                "select count(um) from User u join u.received um where um.message.mid = :mid", Long.class)
+                .setParameter("mid", mid)
+                .getSingleResult());
+    }
+
+    /**
+     * Sends messages to a class of 30 students, each with their own guardian.
+     * Sending only stores the message, the sender's copy, and a delivery; a
+     * worker then creates the guardians' copies. Statements (as prepared;
+     * batched inserts count once per batch) and times are printed, not asserted.
+     */
+    @Test
+    public void sendingToClassesDeliversLater() throws Exception {
+        String token = login("admin_g05");
+        String className = "fanout_" + generateRandomBase64Token(3);
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", className));
+        for (int i = 0; i < 30; i++) {
+            ObjectNode student = newRandomStudent(om, "Fanout_" + i, className);
+            op(batch, "addstudent", student);
+            ObjectNode guardian = newRandomUser(om, "Fanout_" + i, User.Role.GUARDIAN);
+            guardian.putArray("students").add(student.get("sid").asText());
+            op(batch, "adduser", guardian);
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+
+        String mid = null;
+        for (int i = 0; i < 5; i++) {
+            mid = "fanout_" + generateRandomBase64Token(5);
+            ObjectNode message = om.createObjectNode()
+                    .put("msgid", mid)
+                    .put("from", "admin_g05")
+                    .put("title", "Fan-out " + i)
+                    .put("body", "To all guardians");
+            message.putArray("to").add(className);
+            // only what /send itself does; delivery may already be under way
+            Statements.start();
+            this.mockMvc.perform(post("/api/" + token + "/send?return=none")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8)
+                    .content(message.toString()))
+                    .andExpect(status().isOk());
+            // the message, the sender's copy, and the delivery
+            for (String table : new String[] {"message", "umessage", "delivery"}) {
+                assertEquals(1, Statements.writingTo(table).stream()
+                        .filter(sql -> sql.startsWith("insert")).count());
+            }
+            awaitDeliveries(token);
+            assertEquals(30, copiesReceived(mid));
+        }
+
+        // delivering again changes nothing
+        String last = mid;
+        new TransactionTemplate(transactionManager).execute(status -> {
+            Delivery d = new Delivery();
+            d.setMessage(entityManager.createQuery("from Message where mid = :mid", Message.class)
+                    .setParameter("mid", last).getSingleResult());
+            d.setMailbox(entityManager.createQuery("from User where uid = :uid", User.class)
+                    .setParameter("uid", className).getSingleResult());
+            d.setCreated(LocalDateTime.now());
+            d.setDue(d.getCreated());
+            entityManager.persist(d);
+            return null;
+        });
+        deliveryWorker.poll();
+        awaitDeliveries(token);
+        assertEquals(30, copiesReceived(mid));
+        this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andExpect(jsonPath("$.deliveries.failures").value(0))
+                .andExpect(jsonPath("$.deliveries.maxLagMs").isNumber());
+    }
+
+    /**
+     * With shared class delivery, a message to a class is stored once, and read
+     * by every guardian of the class; labels and removals only affect whoever
+     * makes them.
+     */
+    @Test
+    public void sharedClassMessagesAreReadByEveryGuardian() throws Exception {
+        String token = login("admin_g04");
+        this.mockMvc.perform(post("/api/" + token + "/set")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content("{\"class_delivery\": \"bogus\"}"))
+                .andExpect(status().isBadRequest());
+
+        // also after other changes, which must keep the version that they increased
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        long version = tt.execute(status -> findUser("admin_g04").getInstance().getVersion());
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", "shared_" + generateRandomBase64Token(3)));
+        op(batch, "set", om.createObjectNode().put("class_delivery", "shared"));
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.version").value(version + 1));
+        tt.execute(status -> {
+            Instance i = findUser("admin_g04").getInstance();
+            assertEquals(version + 1, i.getVersion());
+            assertEquals(Instance.ClassDelivery.SHARED, i.getClassDelivery());
+            return null;
+        });
+
+        String className = "shared_" + generateRandomBase64Token(3);
+        batch = om.createArrayNode();
+        op(batch, "set", om.createObjectNode().put("class_delivery", "shared"));
+        op(batch, "addclass", om.createObjectNode().put("cid", className));
+        List<String> guardians = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ObjectNode student = newRandomStudent(om, "Shared_" + i, className);
+            op(batch, "addstudent", student);
+            ObjectNode guardian = newRandomUser(om, "Shared_" + i, User.Role.GUARDIAN);
+            guardian.putArray("students").add(student.get("sid").asText());
+            op(batch, "adduser", guardian);
+            guardians.add(guardian.get("uid").asText());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+
+        Statistics stats = entityManager.getEntityManagerFactory()
+                .unwrap(SessionFactory.class).getStatistics();
+        stats.clear();
+        String mid = "shared_" + generateRandomBase64Token(5);
+        ObjectNode message = om.createObjectNode()
+                .put("msgid", mid)
+                .put("from", "admin_g04")
+                .put("title", "Shared")
+                .put("body", "To all guardians");
+        message.putArray("to").add(className);
+        this.mockMvc.perform(post("/api/" + token + "/send?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(message.toString()))
+                .andExpect(status().isOk());
+        // the message, the sender's copy, and the class' copy; nothing to deliver
+        assertEquals(3, stats.getEntityInsertCount());
+        assertEquals(0, pendingDeliveries(token));
+        // only that of the class
+        assertEquals(1, copiesReceived(mid));
+
+        List<String> tokens = new ArrayList<>();
+        for (String uid : guardians) {
+            String t = login(uid);
+            tokens.add(t);
+            this.mockMvc.perform(post("/api/" + t + "/list"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.messages.length()").value(1))
+                    .andExpect(jsonPath("$.messages[0].msgid").value(mid));
+        }
+
+        // labels, and removals, are per guardian
+        this.mockMvc.perform(post("/api/" + tokens.get(0) + "/set")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content("{\"msgid\": \"" + mid + "\", \"labels\": [\"read\"]}"))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(post("/api/" + tokens.get(1) + "/rm/" + mid))
+                .andExpect(status().isOk());
+        this.mockMvc.perform(get("/api/" + tokens.get(0) + "/messages"))
+                .andExpect(jsonPath("$.messages.length()").value(1))
+                .andExpect(jsonPath("$.messages[0].labels[0]").value("read"));
+        this.mockMvc.perform(get("/api/" + tokens.get(1) + "/messages"))
+                .andExpect(jsonPath("$.messages.length()").value(0));
+        this.mockMvc.perform(post("/api/" + tokens.get(1) + "/list"))
+                .andExpect(jsonPath("$.messages.length()").value(0));
+        this.mockMvc.perform(get("/api/" + tokens.get(2) + "/messages"))
+                .andExpect(jsonPath("$.messages.length()").value(1))
+                .andExpect(jsonPath("$.messages[0].labels[0]").value("received"));
+
+        // and exports keep them as they are
+        String exported = export(token);
+        assertTrue(exported.contains("{\"uid\":\"" + className + "\",\"labels\":\"received\"}"));
+        assertTrue(exported.contains("{\"uid\":\"" + guardians.get(1) + "\",\"labels\":\"received\",\"hidden\":true}"));
+    }
+
+    private void set(String token, ObjectNode data) throws Exception {
+        this.mockMvc.perform(post("/api/" + token + "/set?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(data.toString()))
+                .andExpect(status().isOk());
+    }
+
+    /**
+     * Adding or removing a single teacher, guardian or student writes a single
+     * row: links are not rewritten whole, nor kept twice.
+     */
+    @Test
+    public void settingLinksWritesSingleRows() throws Exception {
+        String token = login("admin_g03");
+        String c1 = "links_" + generateRandomBase64Token(3), c2 = "links_" + generateRandomBase64Token(3);
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", c1));
+        op(batch, "addclass", om.createObjectNode().put("cid", c2));
+        ObjectNode student = newRandomStudent(om, "Links", c1);
+        String sid = student.get("sid").asText();
+        op(batch, "addstudent", student);
+        List<String> teachers = new ArrayList<>(), guardians = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ObjectNode teacher = newRandomUser(om, "Links_" + i, User.Role.TEACHER);
+            teacher.putArray("classes").add(c1);
+            op(batch, "adduser", teacher);
+            teachers.add(teacher.get("uid").asText());
+            ObjectNode guardian = newRandomUser(om, "Links_" + i, User.Role.GUARDIAN);
+            // all but the last one, for now
+            if (i < 3) {
+                guardian.putArray("students").add(sid);
+            }
+            op(batch, "adduser", guardian);
+            guardians.add(guardian.get("uid").asText());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+
+        // swap a guardian for another
+        Statements.start();
+        ObjectNode data = om.createObjectNode().put("sid", sid);
+        data.putArray("guardians").add(guardians.get(0)).add(guardians.get(1)).add(guardians.get(3));
+        set(token, data);
+        List<String> written = Statements.writingTo("student_guardians");
+        assertEquals(2, written.size());
+        assertTrue(written.get(0), written.get(0).startsWith("delete") && written.get(0).contains(" and "));
+        assertTrue(written.get(1), written.get(1).startsWith("insert"));
+
+        // remove a teacher
+        Statements.start();
+        data = om.createObjectNode().put("cid", c1);
+        data.putArray("teachers").add(teachers.get(0)).add(teachers.get(1)).add(teachers.get(2));
+        set(token, data);
+        written = Statements.writingTo("eclass_teachers");
+        assertEquals(1, written.size());
+        assertTrue(written.get(0), written.get(0).startsWith("delete") && written.get(0).contains(" and "));
+
+        // move the student to another class: only the student changes
+        Statements.start();
+        set(token, om.createObjectNode().put("sid", sid).put("cid", c2));
+        assertEquals(0, Statements.writingTo("eclass_students").size());
+
+        this.mockMvc.perform(post("/api/" + login(guardians.get(3)) + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.students[0].sid").value(sid))
+                .andExpect(jsonPath("$.students[0].cid").value(c2));
+        this.mockMvc.perform(post("/api/" + login(teachers.get(1)) + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes[0].teachers.length()").value(3))
+                .andExpect(jsonPath("$.classes[0].students.length()").value(0));
+    }
+
+    /**
+     * @return rows in all tables; see stored()
+     */
+    private long rowsStored() {
+        return new TransactionTemplate(transactionManager).execute(status -> {
+            long rows = 0;
+            for (Object table : entityManager.createNativeQuery(
+                    "select table_name from information_schema.tables where table_schema = 'PUBLIC'")
+                    .getResultList()) {
+                rows += ((Number) entityManager.createNativeQuery(
+                        "select count(*) from \"" + table + "\"").getSingleResult()).longValue();
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Each copy of a message is a single row, in a single table.
+     */
+    @Test
+    public void sendingStoresOneRowPerCopy() throws Exception {
+        String token = login("admin_g02");
+        ArrayNode batch = om.createArrayNode();
+        List<String> guardians = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ObjectNode guardian = newRandomUser(om, "Copies_" + i, User.Role.GUARDIAN);
+            op(batch, "adduser", guardian);
+            guardians.add(guardian.get("uid").asText());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+
+        String mid = "copies_" + generateRandomBase64Token(5);
+        ObjectNode message = om.createObjectNode()
+                .put("msgid", mid)
+                .put("from", "admin_g02")
+                .put("title", "Copies")
+                .put("body", "One each");
+        ArrayNode to = message.putArray("to");
+        guardians.forEach(to::add);
+        long before = rowsStored();
+        this.mockMvc.perform(post("/api/" + token + "/send?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(message.toString()))
+                .andExpect(status().isOk());
+        long stored = rowsStored() - before;
+        // the message, its 10 recipients, and 11 copies; no links to copies
+        assertEquals(1 + 10 + 11, stored);
+        assertEquals(10, copiesReceived(mid));
+    }
+
+    private JsonNode cacheStats(String token) throws Exception {
+        return om.readTree(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString()).get("cache");
+    }
+
+    /**
+     * Once warmed, the second-level cache holds classes, students and users,
+     * and the links between them; and requests read them from there.
+     */
+    @Test
+    public void referenceDataIsCached() throws Exception {
+        String token = login("admin_g01");
+        String className = "cached_" + generateRandomBase64Token(3);
+        List<String> guardians = addClass(token, className, Collections.singletonList("admin_g01"), 5);
+
+        fetchPlan.warm();
+        JsonNode before = cacheStats(token);
+        for (String region : new String[] {"classes.students", "students.guardians", "users.students"}) {
+            assertTrue(region, before.get("regions").get(region).get("puts").asLong() > 0);
+        }
+        listStatements(guardians.get(0));
+        JsonNode after = cacheStats(token);
+        assertTrue(after.get("hits").asLong() > before.get("hits").asLong());
+    }
+
+    /**
+     * Changes increase their instance's version without evicting every other
+     * instance from the second-level cache; and the changed one is cached with
+     * its new version.
+     */
+    @Test
+    public void instancesStayCachedAsTheyChange() throws Exception {
+        String token = login("admin_g01");
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        long[] ids = tt.execute(status -> new long[] {
+                findUser("admin_g01").getInstance().getId(),
+                findUser("admin_g02").getInstance().getId()});
+        javax.persistence.Cache cache = entityManager.getEntityManagerFactory().getCache();
+        long before = tt.execute(status -> entityManager.find(Instance.class, ids[0]).getVersion());
+        tt.execute(status -> entityManager.find(Instance.class, ids[1]));
+        assertTrue(cache.contains(Instance.class, ids[1]));
+
+        this.mockMvc.perform(post("/api/" + token + "/addclass")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(om.createObjectNode().put("cid", "versioned_" + generateRandomBase64Token(3)).toString()))
+                .andExpect(status().isOk());
+        assertTrue(cache.contains(Instance.class, ids[1]));
+        assertTrue(cache.contains(Instance.class, ids[0]));
+        assertEquals(before + 1, (long) tt.execute(status ->
+                entityManager.find(Instance.class, ids[0]).getVersion()));
+    }
+
+    private JsonNode readStats(String token) throws Exception {
+        return om.readTree(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString()).get("reads");
+    }
+
+    /**
+     * Reads go to the replica (whose connections are read-only), except for a
+     * while after their token has written something; those go to the primary,
+     * and find what was written.
+     */
+    @Test
+    public void readsGoToReplicaUnlessTokenJustWrote() throws Exception {
+        // stats are read-write; so they get a token of their own
+        String statsToken = login("admin_g01");
+        String token = login("admin_g01");
+        JsonNode before = readStats(statsToken);
+        assertTrue(before.get("replica").asBoolean());
+
+        // logging in wrote the token
+        this.mockMvc.perform(post("/api/" + token + "/list")).andExpect(status().isOk());
+        JsonNode after = readStats(statsToken);
+        assertEquals(before.get("primaryReads").asLong() + 1, after.get("primaryReads").asLong());
+
+        // since=0 skips the cached state, and reads the database
+        Thread.sleep(600);
+        before = after;
+        this.mockMvc.perform(post("/api/" + token + "/list?since=0")).andExpect(status().isOk());
+        after = readStats(statsToken);
+        assertEquals(before.get("replicaReads").asLong() + 1, after.get("replicaReads").asLong());
+        assertTrue(after.get("connections").get("replica").asLong()
+                > before.get("connections").get("replica").asLong());
+
+        String className = "read_" + generateRandomBase64Token(3);
+        this.mockMvc.perform(post("/api/" + token + "/addclass?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(om.createObjectNode().put("cid", className).toString()))
+                .andExpect(status().isOk());
+        before = readStats(statsToken);
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.classes[?(@.cid == '" + className + "')]").exists());
+        after = readStats(statsToken);
+        assertEquals(before.get("primaryReads").asLong() + 1, after.get("primaryReads").asLong());
+    }
+
+    /**
+     * An edit that finds that someone else has changed what it was changing is
+     * run again, and keeps both changes.
+     */
+    @Test
+    public void concurrentEditsAreRetriedNotLost() throws Exception {
+        String token = login("admin_g01");
+        String className = "retry_" + generateRandomBase64Token(3);
+        ObjectNode student = newRandomStudent(om, "Retried", className);
+        String sid = student.get("sid").asText();
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", className));
+        op(batch, "addstudent", student);
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+        JsonNode before = om.readTree(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString()).get("conflicts");
+
+        // just as the rename is about to be written, someone else changes the student
+        Statements.before("update student ", () -> {
+            Thread other = new Thread(() -> new TransactionTemplate(transactionManager).execute(status ->
+                    entityManager.createNativeQuery("update student "
+                            + "set last_name = 'Concurrent', revision = revision + 1 where sid = :sid")
+                            .setParameter("sid", sid)
+                            .executeUpdate()));
+            other.start();
+            try {
+                other.join(10000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        set(token, om.createObjectNode().put("sid", sid).put("first_name", "Renamed"));
+
+        Object[] names = new TransactionTemplate(transactionManager).execute(status ->
+                (Object[]) entityManager.createNativeQuery(
+                        "select first_name, last_name from student where sid = :sid")
+                        .setParameter("sid", sid)
+                        .getSingleResult());
+        assertEquals("Renamed", names[0]);
+        assertEquals("Concurrent", names[1]);
+        JsonNode after = om.readTree(this.mockMvc.perform(get("/api/" + token + "/stats"))
+                .andReturn().getResponse().getContentAsString()).get("conflicts");
+        assertEquals(before.get("retries").asLong() + 1, after.get("retries").asLong());
+        assertEquals(before.get("gaveUp").asLong(), after.get("gaveUp").asLong());
+    }
+
+    /**
+     * @return statements prepared to list everything visible to a user
+     */
+    private int listStatements(String uid) throws Exception {
+        // with a new token, so that nothing is cached
+        String token = login(uid);
+        Statements.start();
+        this.mockMvc.perform(post("/api/" + token + "/list"))
+                .andExpect(status().isOk());
+        return Statements.count();
+    }
+
+    /**
+     * Adds a class, with some students, each with a guardian; and a message
+     * from each class teacher to each guardian.
+     * @return the uids of the guardians
+     */
+    private List<String> addClass(String token, String className, List<String> teachers, int students)
+            throws Exception {
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", className));
+        List<String> guardians = new ArrayList<>();
+        for (int i = 0; i < students; i++) {
+            ObjectNode student = newRandomStudent(om, "Plan_" + i, className);
+            op(batch, "addstudent", student);
+            ObjectNode guardian = newRandomUser(om, "Plan_" + i, User.Role.GUARDIAN);
+            guardian.putArray("students").add(student.get("sid").asText());
+            op(batch, "adduser", guardian);
+            guardians.add(guardian.get("uid").asText());
+        }
+        ObjectNode set = om.createObjectNode().put("cid", className);
+        ArrayNode ts = set.putArray("teachers");
+        teachers.forEach(ts::add);
+        op(batch, "set", set);
+        for (String teacher : teachers) {
+            for (String guardian : guardians) {
+                ObjectNode message = om.createObjectNode()
+                        .put("msgid", generateRandomBase64Token(6))
+                        .put("from", teacher)
+                        .put("title", "Plan")
+                        .put("body", "For " + guardian);
+                message.putArray("to").add(guardian);
+                op(batch, "send", message);
+            }
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+        return guardians;
+    }
+
+    /**
+     * A teacher's /list takes the same number of statements however many other
+     * classes the instance has: only the teacher's own classes are loaded.
+     */
+    @Test
+    public void teacherListingIgnoresOtherClasses() throws Exception {
+        String token = login("admin_g07");
+        String own = "own_" + generateRandomBase64Token(3);
+        ObjectNode teacher = newRandomUser(om, "Own", User.Role.TEACHER);
+        teacher.putArray("classes").add(own);
+        ArrayNode batch = om.createArrayNode();
+        op(batch, "addclass", om.createObjectNode().put("cid", own));
+        op(batch, "adduser", teacher);
+        op(batch, "addstudent", newRandomStudent(om, "Own", own));
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+        String uid = teacher.get("uid").asText();
+
+        int before = listStatements(uid);
+        for (int step = 0; step < 2; step++) {
+            batch = om.createArrayNode();
+            for (int c = 0; c < 25; c++) {
+                String cid = "other_" + generateRandomBase64Token(4);
+                op(batch, "addclass", om.createObjectNode().put("cid", cid));
+                for (int s = 0; s < 4; s++) {
+                    op(batch, "addstudent", newRandomStudent(om, "Other_" + s, cid));
+                }
+            }
+            this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                    .contentType(MediaType.APPLICATION_JSON_UTF8)
+                    .content(batch.toString()))
+                    .andExpect(status().isOk());
+            assertEquals(before, listStatements(uid));
+        }
+    }
+
+    /**
+     * Listing everything visible to an admin, a teacher or a guardian takes
+     * the same number of statements, however much they see.
+     */
+    @Test
+    public void listingTakesConstantStatements() throws Exception {
+        String token = login("admin_g10");
+        ArrayNode batch = om.createArrayNode();
+        List<String> teachers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ObjectNode teacher = newRandomUser(om, "Plan_" + i, User.Role.TEACHER);
+            op(batch, "adduser", teacher);
+            teachers.add(teacher.get("uid").asText());
+        }
+        this.mockMvc.perform(post("/api/" + token + "/batch?return=none")
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .content(batch.toString()))
+                .andExpect(status().isOk());
+        String guardian = addClass(token, "plan_a", teachers.subList(0, 1), 2).get(0);
+
+        String[] uids = {"admin_g10", teachers.get(0), guardian};
+        int[] before = new int[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            before[i] = listStatements(uids[i]);
+        }
+
+        // more classes, teachers, students and guardians, and messages
+        List<String> more = addClass(token, "plan_b", teachers, 6);
+        addClass(token, "plan_c", teachers, 6);
+        ObjectNode data = om.createObjectNode().put("uid", guardian);
+        data.putArray("students").add(
+                JsonPath.parse(this.mockMvc.perform(post("/api/" + login(guardian) + "/list"))
+                        .andReturn().getResponse().getContentAsString()).read("$.students[0].sid", String.class))
+                .add(JsonPath.parse(this.mockMvc.perform(post("/api/" + login(more.get(0)) + "/list"))
+                        .andReturn().getResponse().getContentAsString()).read("$.students[0].sid", String.class));
+        set(token, data);
+
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(uids[i], before[i], listStatements(uids[i]));
+        }
+    }
 }
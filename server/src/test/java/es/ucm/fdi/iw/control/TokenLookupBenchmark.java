@@ -0,0 +1,158 @@
+package es.ucm.fdi.iw.control;
+
+import es.ucm.fdi.iw.IwApplication;
+import es.ucm.fdi.iw.model.Token;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+/**
+ * Compares how long resolving a token takes from the TokenCache, and from the
+ * database; and checks that the latter stays flat as tokens pile up. Not part
+ * of the regular test suite; run with `mvn test -Pbenchmarks`.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = IwApplication.class)
+public class TokenLookupBenchmark {
+
+    private static final int ROUNDS = 20000;
+
+    @Autowired
+    private WebApplicationContext wac;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private TokenCache tokenCache;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // created by /initialize, with es.ucm.fdi.debug set
+    private final String key = "1234";
+
+    @Before
+    public void setup() throws Exception {
+        MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(this.wac).build();
+        mockMvc.perform(get("/api/initialize")).andReturn();
+    }
+
+    private Token query(String key) {
+        return entityManager.createQuery("from Token where key = :key", Token.class)
+                .setParameter("key", key)
+                .getSingleResult();
+    }
+
+    private Token cached(String key) {
+        return tokenCache.toToken(key, tokenCache.get(key), entityManager);
+    }
+
+    @Test
+    public void cachedLookupsAgainstQueries() {
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        tt.execute(status -> {
+            tokenCache.put(query(key));
+            return null;
+        });
+
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long fromDb = time(tt, () -> query(key), ROUNDS);
+            long fromCache = time(tt, () -> cached(key), ROUNDS);
+            if (warmup == 1) {
+                System.out.printf("token lookups over %d rounds: %.2f us from the database, "
+                                + "%.2f us from the cache%n",
+                        ROUNDS, fromDb / 1e3 / ROUNDS, fromCache / 1e3 / ROUNDS);
+            }
+        }
+        tt.execute(status -> {
+            assertEquals(query(key).getId(), cached(key).getId());
+            return null;
+        });
+    }
+
+    private long time(TransactionTemplate tt, Supplier<Token> lookup, int rounds) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            tt.execute(status -> lookup.get());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Adds tokens, with negative ids (so that they cannot clash with those
+     * handed out by token_seq) and keys "bench_" + n, up to a given count.
+     */
+    private void seedTokens(long userId, int from, int to) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> batch = new ArrayList<>();
+        for (int n = from; n < to; n++) {
+            batch.add(new Object[] {-1L - n, "bench_" + n, userId, now, now});
+            if (batch.size() == 10000 || n == to - 1) {
+                jdbcTemplate.batchUpdate("insert into token (id, key, user_id, issued, last_used) "
+                        + "values (?, ?, ?, ?, ?)", batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Times uncached lookups of random keys as the token table grows from a
+     * thousand to a million rows. With the index on Token.key, each lookup
+     * takes about as long at every size; a full scan would take a thousand
+     * times longer at the end than at the start.
+     */
+    @Test
+    public void queriesStayFlatAsTokensGrow() {
+        TransactionTemplate tt = new TransactionTemplate(transactionManager);
+        long userId = tt.execute(status -> query(key).getUser().getId());
+        int rounds = 2000;
+        Random rng = new Random(42);
+        List<Double> micros = new ArrayList<>();
+        try {
+            int seeded = 0;
+            for (int size = 1000; size <= 1000000; size *= 10) {
+                seedTokens(userId, seeded, size);
+                seeded = size;
+                int count = size;
+                // the first round warms up
+                for (int warmup = 0; warmup < 2; warmup++) {
+                    long nanos = time(tt, () -> query("bench_" + rng.nextInt(count)), rounds);
+                    if (warmup == 1) {
+                        micros.add(nanos / 1e3 / rounds);
+                        System.out.printf("token lookups with %d tokens: %.2f us from the database%n",
+                                size, nanos / 1e3 / rounds);
+                    }
+                }
+            }
+        } finally {
+            jdbcTemplate.update("delete from token where id < 0");
+        }
+        // generous, since timings are noisy; but far below what a scan would take
+        assertTrue("lookups grew from " + micros.get(0) + " to " + micros.get(micros.size() - 1) + " us",
+                micros.get(micros.size() - 1) < 5 * micros.get(0));
+    }
+}
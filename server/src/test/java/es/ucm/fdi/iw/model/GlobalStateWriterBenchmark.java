@@ -0,0 +1,151 @@
+package es.ucm.fdi.iw.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.junit.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static es.ucm.fdi.iw.model.GlobalStateWriterTest.build;
+import static es.ucm.fdi.iw.model.GlobalStateWriterTest.encodings;
+import static es.ucm.fdi.iw.model.GlobalStateWriterTest.legacy;
+import static es.ucm.fdi.iw.model.GlobalStateWriterTest.sampleStates;
+import static es.ucm.fdi.iw.model.GlobalStateWriterTest.token;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares how long GlobalStateWriter takes (and how much it allocates) with
+ * what GlobalState used to do, on large instances; and JSON with Smile and
+ * CBOR. See GlobalStateWriterTest for the checks that these all agree.
+ * Not part of the regular test suite;
+ * run with `mvn test -Pbenchmarks`. Results are printed, and only asserted
+ * (loosely) where they should not grow with the instance.
+ */
+public class GlobalStateWriterBenchmark {
+
+    // as configured by Spring Boot
+    private final ObjectMapper om = Jackson2ObjectMapperBuilder.json().build();
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Not a rigorous benchmark; but good enough to compare both approaches
+     * at a realistic size.
+     */
+    @Test
+    public void compareAtTenThousandStudents() throws Exception {
+        Instance big = build(100, 100, 1000);
+        ObjectWriter w = om.writer();
+        int rounds = 20;
+        for (User u : new User[] {
+                big.getUsers().get(0),
+                big.getClasses().get(50).getTeachers().iterator().next()}) {
+            Token t = token(u);
+            GlobalState state = new GlobalState(t, big.getVersion(), -1, null);
+            int size = w.writeValueAsBytes(state).length;
+
+            // warm up, then measure
+            for (int r = 0; r < rounds; r++) {
+                w.writeValueAsBytes(legacy(t, -1, null));
+                w.writeValueAsBytes(state);
+            }
+            long legacyNanos = 0, legacyBytes = 0, streamNanos = 0, streamBytes = 0;
+            for (int r = 0; r < rounds; r++) {
+                long a = allocated(), start = System.nanoTime();
+                w.writeValueAsBytes(legacy(t, -1, null));
+                legacyNanos += System.nanoTime() - start;
+                legacyBytes += allocated() - a;
+
+                a = allocated();
+                start = System.nanoTime();
+                w.writeValueAsBytes(new GlobalState(t, big.getVersion(), -1, null));
+                streamNanos += System.nanoTime() - start;
+                streamBytes += allocated() - a;
+            }
+            System.out.printf("%s (%d bytes of JSON): lists %.2f ms, %d KB; streaming %.2f ms, %d KB%n",
+                    u.getType(), size,
+                    legacyNanos / rounds / 1e6, legacyBytes / rounds / 1024,
+                    streamNanos / rounds / 1e6, streamBytes / rounds / 1024);
+        }
+    }
+
+    private static long[] timeEncoding(ObjectMapper m, Object value, int rounds) throws Exception {
+        byte[] bytes = m.writeValueAsBytes(value);
+        for (int r = 0; r < rounds; r++) {
+            m.readTree(m.writeValueAsBytes(value));
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            m.writeValueAsBytes(value);
+        }
+        long encode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            m.readTree(bytes);
+        }
+        long decode = System.nanoTime() - start;
+        return new long[] {bytes.length, encode / rounds, decode / rounds};
+    }
+
+    /**
+     * Compares JSON with Smile and CBOR on an instance about as large as
+     * sample.json, and on sample.json itself.
+     */
+    @Test
+    public void compareEncodingsAtSampleSize() throws Exception {
+        int rounds = 500;
+        for (Map.Entry<String, Object> state : sampleStates(om).entrySet()) {
+            StringBuilder sb = new StringBuilder(state.getKey() + ":");
+            for (Map.Entry<String, ObjectMapper> m : encodings(om).entrySet()) {
+                long[] t = timeEncoding(m.getValue(), state.getValue(), rounds);
+                sb.append(String.format(" %s %d bytes, encode %.3f ms, decode %.3f ms;",
+                        m.getKey(), t[0], t[1] / 1e6, t[2] / 1e6));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    /**
+     * A teacher's state only covers their own classes; so, as the instance
+     * gains classes (of other teachers), writing it should take about as long.
+     * Each teacher here has a single class of 10 students.
+     */
+    @Test
+    public void teacherStateStaysFlatAsClassesGrow() throws Exception {
+        ObjectWriter w = om.writer();
+        int batches = 20, rounds = 100;
+        double first = -1, last = -1;
+        for (int classes : new int[] {10, 100, 1000, 10000}) {
+            Instance big = build(classes, 10, 1000);
+            User teacher = big.getClasses().get(0).getTeachers().iterator().next();
+            Token t = token(teacher);
+
+            // warm up, then keep the best batch (as larger heaps make for longer
+            // garbage collections, which have nothing to do with the writer)
+            for (int r = 0; r < batches * rounds; r++) {
+                w.writeValueAsBytes(new GlobalState(t, big.getVersion(), -1, null));
+            }
+            long best = Long.MAX_VALUE;
+            for (int b = 0; b < batches; b++) {
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    w.writeValueAsBytes(new GlobalState(t, big.getVersion(), -1, null));
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            last = best / (double) rounds / 1e6;
+            if (first < 0) {
+                first = last;
+            }
+            System.out.printf("teacher of 1 of %d classes (%d students in all): %.3f ms%n",
+                    classes, big.getStudents().size(), last);
+        }
+        assertTrue("writing a teacher's state grew from " + first + " to " + last + " ms",
+                last < 5 * first);
+    }
+}
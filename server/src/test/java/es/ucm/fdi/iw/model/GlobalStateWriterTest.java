@@ -0,0 +1,287 @@
+package es.ucm.fdi.iw.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that GlobalStateWriter writes exactly what GlobalState used to write
+ * (except for guardians, who now only see their own students). How long both
+ * take is compared in GlobalStateWriterBenchmark.
+ */
+public class GlobalStateWriterTest {
+
+    private ObjectMapper om;
+    private Instance instance;
+    private User admin, teacher, guardian;
+
+    @Before
+    public void setup() {
+        // as configured by Spring Boot; notably, without DEFAULT_VIEW_INCLUSION
+        om = Jackson2ObjectMapperBuilder.json().build();
+        instance = build(4, 10, 3);
+        admin = instance.getUsers().get(0);
+        teacher = instance.getClasses().get(1).getTeachers().iterator().next();
+        guardian = instance.getStudents().get(3).getGuardians().iterator().next();
+    }
+
+    static User user(Instance i, String uid, String roles) {
+        User u = new User();
+        u.setUid(uid);
+        u.setRoles(roles);
+        u.setInstance(i);
+        i.getUsers().add(u);
+        return u;
+    }
+
+    /**
+     * Builds an instance with one admin, and classes with a teacher (and a
+     * class user) each; every student has its own guardian.
+     */
+    static Instance build(int classCount, int studentsPerClass, long version) {
+        Instance i = new Instance();
+        i.setVersion(version);
+        User a = user(i, "admin", "ADMIN");
+        a.setTelephones("555");
+        long changed = 0;
+        for (int c = 0; c < classCount; c++) {
+            EClass ec = new EClass();
+            ec.setId(c);
+            ec.setCid("c" + c);
+            ec.setInstance(i);
+            ec.setChanged(++changed % version);
+            i.getClasses().add(ec);
+            User t = user(i, "t" + c, "TEACHER");
+            t.setFirstName("Teacher");
+            t.setLastName("" + c);
+            t.setTelephones("1,2");
+            t.setChanged(++changed % version);
+            ec.getTeachers().add(t);
+            t.getClasses().add(ec);
+            User cu = user(i, "c" + c, "CLASS");
+            ec.getTeachers().add(cu);
+            for (int s = 0; s < studentsPerClass; s++) {
+                Student st = new Student();
+                st.setSid("s" + c + "_" + s);
+                st.setFirstName("Student");
+                st.setLastName("\"" + s + "\"");
+                st.setInstance(i);
+                st.setEClass(ec);
+                st.setChanged(++changed % version);
+                ec.getStudents().add(st);
+                i.getStudents().add(st);
+                User g = user(i, "g" + c + "_" + s, "GUARDIAN");
+                g.setChanged(++changed % version);
+                st.getGuardians().add(g);
+                g.getStudents().add(st);
+            }
+        }
+
+        // a couple of messages between the first teacher and guardian
+        User t = i.getClasses().get(0).getTeachers().iterator().next();
+        User g = i.getClasses().get(0).getStudents().iterator().next().getGuardians().iterator().next();
+        for (int m = 0; m < 2; m++) {
+            Message msg = new Message();
+            msg.setMid("m" + m);
+            msg.setFrom(t);
+            msg.getTo().add(g);
+            msg.setDate("2019-12-0" + (m + 1));
+            msg.setSubject("subject " + m);
+            msg.setBody("body\n" + m);
+            UMessage sent = new UMessage();
+            sent.setMessage(msg);
+            sent.setUser(t);
+            sent.setChanged(m + 1);
+            t.getSent().add(sent);
+            UMessage received = new UMessage();
+            received.setMessage(msg);
+            received.setUser(g);
+            received.setLabels(m == 0 ? null : "recv,unread");
+            received.setChanged(m + 1);
+            g.getReceived().add(received);
+        }
+        return i;
+    }
+
+    static Token token(User u) {
+        Token t = new Token();
+        t.setKey("KEY-" + u.getUid());
+        t.setUser(u);
+        return t;
+    }
+
+    /**
+     * What GlobalState used to do: walk the whole instance gathering everything
+     * visible into lists, and then let Jackson serialize those lists.
+     */
+    static Map<String, Object> legacy(Token token, long since, List<Tombstone> removed) {
+        User u = token.getUser();
+        Instance i = u.getInstance();
+        List<EClass> classes = new ArrayList<>();
+        List<User> users = new ArrayList<>();
+        List<Student> students = new ArrayList<>();
+        List<UMessage> messages = new ArrayList<>();
+
+        for (UMessage m : u.getSent()) if (m.getChanged() > since) messages.add(m);
+        for (UMessage m : u.getReceived()) if (m.getChanged() > since) messages.add(m);
+
+        if (u.hasRole(User.Role.ADMIN)) {
+            for (EClass c : i.getClasses()) if (c.getChanged() > since) classes.add(c);
+            for (User o : i.getUsers()) if (o.getChanged() > since) users.add(o);
+            for (Student s : i.getStudents()) if (s.getChanged() > since) students.add(s);
+        } else {
+            Set<User> known = new HashSet<>();
+            if (u.hasRole(User.Role.TEACHER)) {
+                Set<Student> knownStudents = new HashSet<>();
+                for (EClass c : i.getClasses()) {
+                    if (c.getTeachers().contains(u)) {
+                        if (c.getChanged() > since) classes.add(c);
+                        for (User o : c.getTeachers()) {
+                            if (known.add(o) && o.getChanged() > since) users.add(o);
+                        }
+                        for (Student s : c.getStudents()) {
+                            if (knownStudents.add(s)) {
+                                if (s.getChanged() > since) students.add(s);
+                                for (User o : s.getGuardians()) {
+                                    if (known.add(o) && o.getChanged() > since) users.add(o);
+                                }
+                            }
+                        }
+                    }
+                }
+            } else if (u.hasRole(User.Role.GUARDIAN)) {
+                for (Student s : i.getStudents()) {
+                    if (s.getGuardians().contains(u)) {
+                        if (s.getChanged() > since) students.add(s);
+                        for (User o : s.getEClass().getTeachers()) {
+                            if (known.add(o) && o.getChanged() > since) users.add(o);
+                        }
+                    }
+                }
+            }
+        }
+        users.removeIf(o -> o.hasRole(User.Role.CLASS));
+
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("classes", classes);
+        state.put("users", users);
+        state.put("students", students);
+        state.put("messages", messages);
+        state.put("token", token.getKey());
+        state.put("version", i.getVersion());
+        if (removed != null) {
+            Map<String, List<String>> byKind = new TreeMap<>();
+            for (String kind : new String[] {
+                    Tombstone.CLASSES, Tombstone.USERS, Tombstone.STUDENTS, Tombstone.MESSAGES}) {
+                byKind.put(kind, new ArrayList<>());
+            }
+            for (Tombstone t : removed) byKind.get(t.getKind()).add(t.getRef());
+            state.put("removed", byKind);
+        }
+        return state;
+    }
+
+    private void assertSame(User u, long since, List<Tombstone> removed) throws Exception {
+        Token t = token(u);
+        GlobalState state = new GlobalState(t, instance.getVersion(), since, removed);
+        for (ObjectWriter w : new ObjectWriter[] {
+                om.writer(), om.writerWithView(Views.Public.class)}) {
+            assertEquals(
+                    w.writeValueAsString(legacy(t, since, removed)),
+                    w.writeValueAsString(state));
+        }
+    }
+
+    @Test
+    public void sameAsBeforeForEveryRole() throws Exception {
+        for (User u : new User[] {admin, teacher, guardian}) {
+            assertSame(u, -1, null);
+        }
+    }
+
+    @Test
+    public void sameAsBeforeForMessages() throws Exception {
+        User t = instance.getClasses().get(0).getTeachers().iterator().next();
+        User g = instance.getClasses().get(0).getStudents().iterator().next().getGuardians().iterator().next();
+        assertSame(t, -1, null);
+        assertSame(g, -1, null);
+        assertSame(g, 1, Collections.emptyList());
+    }
+
+    @Test
+    public void sameAsBeforeForDeltas() throws Exception {
+        List<Tombstone> removed = new ArrayList<>();
+        String[][] gone = {
+                {Tombstone.USERS, "x"}, {Tombstone.CLASSES, "c9"}, {Tombstone.USERS, "y"}};
+        for (String[] g : gone) {
+            Tombstone t = new Tombstone();
+            t.setKind(g[0]);
+            t.setRef(g[1]);
+            removed.add(t);
+        }
+        for (User u : new User[] {admin, teacher, guardian}) {
+            assertSame(u, 1, removed);
+        }
+    }
+
+    @Test
+    public void sameAsBeforeAtTenThousandStudents() throws Exception {
+        Instance big = build(100, 100, 1000);
+        ObjectWriter w = om.writer();
+        for (User u : new User[] {
+                big.getUsers().get(0),
+                big.getClasses().get(50).getTeachers().iterator().next()}) {
+            Token t = token(u);
+            assertEquals(
+                    new String(w.writeValueAsBytes(legacy(t, -1, null)), "UTF-8"),
+                    new String(w.writeValueAsBytes(new GlobalState(t, big.getVersion(), -1, null)), "UTF-8"));
+        }
+    }
+
+    /**
+     * States, and sample.json itself, decode to the same thing from JSON, Smile
+     * and CBOR. Sizes and times are compared in GlobalStateWriterBenchmark.
+     */
+    @Test
+    public void encodingsAgreeAtSampleSize() throws Exception {
+        for (Map.Entry<String, Object> state : sampleStates(om).entrySet()) {
+            JsonNode expected = om.readTree(om.writeValueAsBytes(state.getValue()));
+            for (ObjectMapper mapper : encodings(om).values()) {
+                assertEquals(state.getKey(), expected,
+                        mapper.readTree(mapper.writeValueAsBytes(state.getValue())));
+            }
+        }
+    }
+
+    static Map<String, ObjectMapper> encodings(ObjectMapper json) {
+        Map<String, ObjectMapper> mappers = new LinkedHashMap<>();
+        mappers.put("json", json);
+        mappers.put("smile", Jackson2ObjectMapperBuilder.smile().build());
+        mappers.put("cbor", Jackson2ObjectMapperBuilder.cbor().build());
+        return mappers;
+    }
+
+    /**
+     * States for an instance about as large as sample.json (6 classes, ~110
+     * students, ~180 users); and sample.json itself, if found.
+     */
+    static Map<String, Object> sampleStates(ObjectMapper json) throws Exception {
+        Instance sample = build(6, 19, 1000);
+        Map<String, Object> states = new LinkedHashMap<>();
+        states.put("admin state", new GlobalState(token(sample.getUsers().get(0)), 1000, -1, null));
+        states.put("teacher state", new GlobalState(
+                token(sample.getClasses().get(0).getTeachers().iterator().next()), 1000, -1, null));
+        java.io.File file = new java.io.File("sample.json");
+        if (file.exists()) {
+            states.put("sample.json", json.readTree(file));
+        }
+        return states;
+    }
+}
@@ -0,0 +1,52 @@
+package es.ucm.fdi.iw.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that roles and their bitmask (see User.Role.maskOf) agree.
+ */
+public class UserTest {
+
+    @Test
+    public void eachRoleHasItsOwnBit() {
+        int all = 0;
+        for (User.Role r : User.Role.values()) {
+            assertEquals(0, all & r.mask());
+            assertEquals(r.mask(), User.Role.maskOf("" + r));
+            all |= r.mask();
+        }
+    }
+
+    @Test
+    public void severalRolesAreCombined() {
+        assertEquals(User.Role.ADMIN.mask() | User.Role.TEACHER.mask(),
+                User.Role.maskOf("ADMIN, TEACHER"));
+        assertEquals(User.Role.ADMIN.mask(), User.Role.maskOf("ADMIN,ADMIN"));
+    }
+
+    @Test
+    public void blankAndUnknownRolesAreSkipped() {
+        assertEquals(0, User.Role.maskOf(null));
+        assertEquals(0, User.Role.maskOf(""));
+        assertEquals(0, User.Role.maskOf(" , "));
+        assertEquals(User.Role.GUARDIAN.mask(), User.Role.maskOf("GUARDIAN,,JANITOR"));
+    }
+
+    @Test
+    public void settingRolesSetsTheMask() {
+        User u = new User();
+        u.setRoles("TEACHER,GUARDIAN");
+        assertTrue(u.hasRole(User.Role.TEACHER));
+        assertTrue(u.hasRole(User.Role.GUARDIAN));
+        assertFalse(u.hasRole(User.Role.ADMIN));
+
+        // as may be stored by older versions, or edited by hand
+        u.setRoles("TEACHER,");
+        assertTrue(u.hasRole(User.Role.TEACHER));
+        assertFalse(u.hasRole(User.Role.GUARDIAN));
+    }
+}